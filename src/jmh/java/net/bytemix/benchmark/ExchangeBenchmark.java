@@ -0,0 +1,48 @@
+package net.bytemix.benchmark;
+
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.MoneyService;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of exchanging an amount and of formatting it for the periodic printout.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExchangeBenchmark {
+    private MoneyService moneyService = new MoneyService();
+    private Currency usd = Currency.getInstance("USD");
+    private MoneyAmount czk;
+    private MoneyAmount usdAmount;
+
+    @Setup
+    public void setup() {
+        moneyService.saveExchangeRate("USD, CZK, 23.456");
+        moneyService.saveExchangeRate("USD, EUR, 0.92");
+        czk = new MoneyAmount(new BigDecimal("123456.78"), Currency.getInstance("CZK"));
+        usdAmount = new MoneyAmount(new BigDecimal("98765.43"), usd);
+    }
+
+    @Benchmark
+    public MoneyAmount exchange() {
+        return moneyService.exchange(czk, usd);
+    }
+
+    @Benchmark
+    public String amountStringWithExchange() {
+        return moneyService.getAmountStringWithExchange(czk);
+    }
+
+    @Benchmark
+    public String amountStringWithoutExchange() {
+        return moneyService.getAmountStringWithExchange(usdAmount);
+    }
+}
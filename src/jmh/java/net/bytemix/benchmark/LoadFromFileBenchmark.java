@@ -0,0 +1,61 @@
+package net.bytemix.benchmark;
+
+import net.bytemix.services.MoneyService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load generated payment files with MoneyService.loadFromFile.
+ *
+ * The files are generated into java.io.tmpdir on the first run and reused by the later ones, the 100M line file
+ * takes about 1.3GB. Run only the smaller sizes with -p lines=1000000,10000000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class LoadFromFileBenchmark {
+    private static final String[] CURRENCIES = {"USD", "EUR", "CZK", "GBP", "JPY", "CHF", "HKD", "RMB"};
+
+    @Param({"1000000", "10000000", "100000000"})
+    private int lines;
+
+    private MoneyService moneyService = new MoneyService();
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void generateFile() throws IOException {
+        file = Paths.get(System.getProperty("java.io.tmpdir"), "payment-tracker-bench-" + lines + ".txt");
+        if (Files.exists(file))
+            return;
+
+        Path partial = Paths.get(file + ".partial");
+        Random random = new Random(lines);
+        try (BufferedWriter writer = Files.newBufferedWriter(partial, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < lines; i++) {
+                //RMB is not a currency code, so a few lines are rejected like in real-world files
+                writer.write(CURRENCIES[random.nextInt(CURRENCIES.length)]);
+                writer.write(' ');
+                writer.write(BigDecimal.valueOf(random.nextInt(2000000) - 1000000, 2).toPlainString());
+                writer.write('\n');
+            }
+        }
+        Files.move(partial, file);
+    }
+
+    @Benchmark
+    public Object loadFromFile() {
+        return moneyService.loadFromFile(file);
+    }
+}
@@ -0,0 +1,93 @@
+package net.bytemix.benchmark;
+
+import net.bytemix.MoneyParseException;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.MoneyParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-line cost of parsing payments: the original split-based parsing, the MoneyAmount(String) constructor and
+ * MoneyParser on Strings and on a ByteBuffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    private static final int LINES = 1024;
+    private static final String[] CURRENCIES = {"USD", "EUR", "CZK", "GBP", "JPY", "CHF"};
+
+    private String[] lines;
+    private ByteBuffer buffer;
+    private int[] lineStarts;
+    private MoneyParser parser;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        lines = new String[LINES];
+        lineStarts = new int[LINES + 1];
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = CURRENCIES[random.nextInt(CURRENCIES.length)] + " "
+                    + BigDecimal.valueOf(random.nextInt(2000000) - 1000000, 2).toPlainString();
+            lineStarts[i] = content.length();
+            content.append(lines[i]).append('\n');
+        }
+        lineStarts[LINES] = content.length();
+        buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.US_ASCII));
+        parser = new MoneyParser();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void legacySplit(Blackhole blackhole) {
+        for (String line : lines) {
+            String[] lineSplit = line.split(" ");
+            blackhole.consume(Currency.getInstance(lineSplit[0]));
+            blackhole.consume(new BigDecimal(lineSplit[1]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void moneyAmountConstructor(Blackhole blackhole) throws MoneyParseException {
+        for (String line : lines)
+            blackhole.consume(new MoneyAmount(line));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parserString(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(parser.parse(line));
+            blackhole.consume(parser.getUnscaledValue());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parserByteBuffer(Blackhole blackhole) {
+        for (int i = 0; i < LINES; i++) {
+            blackhole.consume(parser.parse(buffer, lineStarts[i], lineStarts[i + 1] - 1));
+            blackhole.consume(parser.getUnscaledValue());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parserRejectsBadInput(Blackhole blackhole) {
+        for (String line : lines)
+            blackhole.consume(parser.parse(line, 1, line.length()));
+    }
+}
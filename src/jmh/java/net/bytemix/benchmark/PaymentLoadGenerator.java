@@ -0,0 +1,150 @@
+package net.bytemix.benchmark;
+
+import net.bytemix.PaymentServer;
+import net.bytemix.services.MoneyService;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Load generator for PaymentServer that runs on one machine.
+ *
+ * Opens the given number of connections from a single selector thread, and every connection sends its payments with
+ * up to the given number of lines in flight (pipelining). Without a port, an embedded server is started on a free
+ * port of localhost. Prints the achieved rate and checks that every line was answered.
+ *
+ * Usage: PaymentLoadGenerator [CONNECTIONS] [LINES_PER_CONNECTION] [IN_FLIGHT] [PORT]. Tens of thousands of
+ * connections need a higher limit of open files (ulimit -n).
+ */
+public class PaymentLoadGenerator {
+    private static final String[] CURRENCIES = {"USD", "EUR", "CZK", "GBP", "JPY", "CHF"};
+
+    public static void main(String[] args) throws IOException {
+        int connectionCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int inFlight = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        PaymentServer server = null;
+        int port;
+        if (args.length > 3) {
+            port = Integer.parseInt(args[3]);
+        } else {
+            server = new PaymentServer(new MoneyService(),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                    Runtime.getRuntime().availableProcessors());
+            server.start();
+            port = server.getPort();
+        }
+
+        try {
+            long start = System.nanoTime();
+            long errors = run(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), connectionCount,
+                    lines, inFlight);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long total = (long) connectionCount * lines;
+            System.out.printf("%d connections, %d lines in %.2f s: %.0f lines/s, %d errors%n", connectionCount,
+                    total, seconds, total / seconds, errors);
+            if (server != null)
+                System.out.println("Server registered " + server.getPaymentCount() + " payments over "
+                        + server.getConnectionCount() + " connections");
+        } finally {
+            if (server != null)
+                server.close();
+        }
+    }
+
+    /**
+     * @return number of ERR answers
+     */
+    static long run(InetSocketAddress address, int connectionCount, int lines, int inFlight) throws IOException {
+        byte[][] payments = new byte[CURRENCIES.length][];
+        for (int i = 0; i < CURRENCIES.length; i++)
+            payments[i] = (CURRENCIES[i] + " 12.34\n").getBytes(StandardCharsets.US_ASCII);
+
+        long errors = 0;
+        int finished = 0;
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < connectionCount; i++) {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE,
+                        new Client(payments[i % payments.length], lines));
+            }
+
+            ByteBuffer answers = ByteBuffer.allocate(64 * 1024);
+            while (finished < connectionCount) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client client = (Client) key.attachment();
+                    SocketChannel channel = (SocketChannel) key.channel();
+
+                    if (key.isReadable()) {
+                        answers.clear();
+                        if (channel.read(answers) < 0)
+                            throw new IOException("Server closed the connection");
+                        for (int i = 0; i < answers.position(); i++) {
+                            byte b = answers.get(i);
+                            if (client.lineStart && b == 'E')
+                                errors++;
+                            client.lineStart = b == '\n';
+                            if (b == '\n')
+                                client.answered++;
+                        }
+                    }
+
+                    if (key.isValid() && key.isWritable())
+                        client.send(channel, inFlight);
+
+                    if (client.answered == lines) {
+                        channel.close();
+                        finished++;
+                    } else if (!client.output.hasRemaining()
+                            && (client.sent == lines || client.sent - client.answered >= inFlight)) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    } else {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+            }
+        }
+        return errors;
+    }
+
+    private static final class Client {
+        private final byte[] payment;
+        private final int lines;
+        private final ByteBuffer output;
+        private int sent;
+        private int answered;
+        private boolean lineStart = true;
+
+        private Client(byte[] payment, int lines) {
+            this.payment = payment;
+            this.lines = lines;
+            this.output = ByteBuffer.allocate(payment.length * 64);
+            output.flip();
+        }
+
+        private void send(SocketChannel channel, int inFlight) throws IOException {
+            if (!output.hasRemaining()) {
+                output.clear();
+                while (sent < lines && sent - answered < inFlight && output.remaining() >= payment.length) {
+                    output.put(payment);
+                    sent++;
+                }
+                output.flip();
+            }
+            channel.write(output);
+        }
+    }
+}
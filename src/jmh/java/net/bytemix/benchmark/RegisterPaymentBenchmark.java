@@ -0,0 +1,86 @@
+package net.bytemix.benchmark;
+
+import net.bytemix.MoneyParseException;
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.MoneyService;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of MoneyService.registerPayment with a single writer and with one writer per core.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegisterPaymentBenchmark {
+    private static final int PAYMENTS = 1024;
+    private static final String[] CURRENCIES = {"USD", "EUR", "CZK", "GBP", "JPY", "CHF"};
+
+    private MoneyService moneyService;
+    private MoneyAmount[] payments;
+    private int[] currencyIndexes;
+    private long[] unscaledValues;
+    private int index;
+
+    /**
+     * One service for all the benchmark threads, so the multi-threaded variants measure contention
+     */
+    @State(Scope.Benchmark)
+    public static class SharedService {
+        private MoneyService moneyService = new MoneyService();
+    }
+
+    @Setup
+    public void setup(SharedService shared) throws MoneyParseException {
+        moneyService = shared.moneyService;
+        Random random = new Random();
+        payments = new MoneyAmount[PAYMENTS];
+        currencyIndexes = new int[PAYMENTS];
+        unscaledValues = new long[PAYMENTS];
+        for (int i = 0; i < PAYMENTS; i++) {
+            String currency = CURRENCIES[random.nextInt(CURRENCIES.length)];
+            unscaledValues[i] = random.nextInt(2000000) - 1000000;
+            currencyIndexes[i] = Currencies.indexOf(Currency.getInstance(currency));
+            payments[i] = new MoneyAmount(BigDecimal.valueOf(unscaledValues[i], 2), Currency.getInstance(currency));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void registerMoneyAmount() {
+        moneyService.registerPayment(payments[next()]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void registerMoneyAmountMultiThreaded() {
+        moneyService.registerPayment(payments[next()]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void registerUnscaled() {
+        int i = next();
+        moneyService.registerPayment(currencyIndexes[i], unscaledValues[i], 2);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void registerUnscaledMultiThreaded() {
+        int i = next();
+        moneyService.registerPayment(currencyIndexes[i], unscaledValues[i], 2);
+    }
+
+    private int next() {
+        index = (index + 1) & (PAYMENTS - 1);
+        return index;
+    }
+}
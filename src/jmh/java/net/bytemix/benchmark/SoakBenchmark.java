@@ -0,0 +1,112 @@
+package net.bytemix.benchmark;
+
+import net.bytemix.ReportRenderer;
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.PrecisionPolicy;
+import net.bytemix.services.BalanceSnapshot;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentBatch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Currency;
+import java.util.List;
+
+/**
+ * Long-running check that the cost of the operations doesn't grow with the number of registered payments, which a
+ * JMH benchmark with its short iterations wouldn't show.
+ *
+ * Registers payments in batches, a third of them with more fraction digits than their currency uses, and after
+ * every interval prints the cost per payment in that interval, the cost of exchanging every balance and of
+ * rendering the report, and the precision (number of digits) of the USD balance and of its exchange to EUR. With a
+ * bounded precision policy all of them should stay flat.
+ *
+ * Usage: SoakBenchmark [PAYMENTS] [INTERVAL] [exact|normalized]. Default is 500 million payments in intervals of 25
+ * million, normalized.
+ */
+public class SoakBenchmark {
+    private static final String[] CURRENCIES = {"USD", "EUR", "CZK", "GBP", "JPY", "CHF"};
+    private static final int BATCH_SIZE = 4096;
+    private static final int MEASURED_OPERATIONS = 10000;
+
+    //Keeps the measured exchanges from being optimized away
+    private static volatile BigDecimal sink;
+
+    public static void main(String[] args) throws IOException {
+        long payments = args.length > 0 ? Long.parseLong(args[0]) : 500_000_000L;
+        long interval = args.length > 1 ? Long.parseLong(args[1]) : 25_000_000L;
+        boolean normalized = args.length < 3 || args[2].equals("normalized");
+
+        MoneyService moneyService = new MoneyService(new PrecisionPolicy(RoundingMode.HALF_EVEN, 3, 8, normalized));
+        moneyService.saveExchangeRate("USD, EUR, 0.923");
+        moneyService.saveExchangeRate("USD, CZK, 23.117");
+        moneyService.saveExchangeRate("USD, GBP, 0.7931");
+        moneyService.saveExchangeRate("JPY, USD, 0.006712");
+        moneyService.saveExchangeRate("CHF, USD, 1.1203");
+
+        int[] currencyIndexes = new int[CURRENCIES.length];
+        for (int i = 0; i < CURRENCIES.length; i++)
+            currencyIndexes[i] = Currencies.indexOf(Currency.getInstance(CURRENCIES[i]));
+
+        ReportRenderer renderer = new ReportRenderer(moneyService);
+        OutputStream nowhere = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        System.out.println("payments      ns/payment  ns/exchange  us/report  USD digits  USD->EUR digits");
+        PaymentBatch batch = new PaymentBatch(BATCH_SIZE);
+        long registered = 0;
+        long intervalStart = System.nanoTime();
+        while (registered < payments) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                long n = registered + i;
+                //Scales 0 to 3, the values alternate in sign so the balances don't only grow
+                long unscaled = (n % 2 == 0 ? 1 : -1) * (n * 7919 % 1_000_000 + 1);
+                batch.add(currencyIndexes[(int) (n % currencyIndexes.length)], unscaled, (int) (n % 4));
+            }
+            moneyService.registerPayments(batch);
+            batch.clear();
+            registered += BATCH_SIZE;
+
+            if (registered % interval < BATCH_SIZE) {
+                double perPayment = (double) (System.nanoTime() - intervalStart) / interval;
+                report(moneyService, renderer, nowhere, registered, perPayment);
+                intervalStart = System.nanoTime();
+            }
+        }
+    }
+
+    private static void report(MoneyService moneyService, ReportRenderer renderer, OutputStream nowhere,
+                               long registered, double perPayment) throws IOException {
+        Currency usd = Currency.getInstance("USD");
+        Currency eur = Currency.getInstance("EUR");
+        BalanceSnapshot snapshot = moneyService.getSnapshot();
+        MoneyAmount usdBalance = snapshot.getAmount(usd);
+        List<MoneyAmount> balances = snapshot.getMoneyAmounts();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_OPERATIONS; i++) {
+            MoneyAmount exchanged = moneyService.exchange(balances.get(i % balances.size()), usd);
+            if (exchanged != null)
+                sink = exchanged.getValue();
+        }
+        double perExchange = (double) (System.nanoTime() - start) / MEASURED_OPERATIONS;
+
+        start = System.nanoTime();
+        renderer.writeTo(nowhere);
+        double reportMicros = (System.nanoTime() - start) / 1e3;
+
+        MoneyAmount usdInEur = moneyService.exchange(usdBalance, eur);
+        System.out.printf("%-12d  %10.2f  %11.1f  %9.1f  %10d  %15d%n", registered, perPayment, perExchange,
+                reportMicros, usdBalance.getValue().precision(), usdInEur.getValue().precision());
+    }
+}
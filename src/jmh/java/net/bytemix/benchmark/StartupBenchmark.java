@@ -0,0 +1,87 @@
+package net.bytemix.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how long a short-lived run of PaymentTracker takes, which JMH can't do because it runs inside the JVM.
+ *
+ * Starts the tracker in the batch mode (-b) as a new JVM, gives it one payment on the standard input and measures
+ * the time until the balance of that payment is printed (time to first payment) and until the JVM exits. Every
+ * variant is run the given number of times after a few warm-up runs, which warm up the disk cache rather than the
+ * JVM. Variants are without any option, and with the class data sharing archive if one is given (see the cds
+ * profile in pom.xml, the archive must be built from the same jar this runs from).
+ *
+ * Usage: StartupBenchmark [RUNS] [ARCHIVE]
+ */
+public class StartupBenchmark {
+    private static final int WARMUP_RUNS = 3;
+    private static final String PAYMENT = "USD 12.34";
+
+    public static void main(String[] args) throws IOException, InterruptedException, URISyntaxException {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        String classPath = new File(StartupBenchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .getPath();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        measure("default", runs, java, "-cp", classPath, "net.bytemix.PaymentTracker", "-b");
+        if (args.length > 1)
+            measure("cds", runs, java, "-XX:SharedArchiveFile=" + args[1], "-cp", classPath,
+                    "net.bytemix.PaymentTracker", "-b");
+    }
+
+    private static void measure(String name, int runs, String... command) throws IOException, InterruptedException {
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            run(command);
+
+        long[] firstPayment = new long[runs];
+        long[] exit = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long[] times = run(command);
+            firstPayment[i] = times[0];
+            exit[i] = times[1];
+        }
+        Arrays.sort(firstPayment);
+        Arrays.sort(exit);
+        System.out.printf("%-8s first payment: median %.1f ms, min %.1f ms; exit: median %.1f ms, min %.1f ms%n",
+                name, firstPayment[runs / 2] / 1e6, firstPayment[0] / 1e6, exit[runs / 2] / 1e6, exit[0] / 1e6);
+    }
+
+    /**
+     * @return nanoseconds until the payment was printed and until the process exited
+     */
+    private static long[] run(String... command) throws IOException, InterruptedException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(command));
+        ProcessBuilder builder = new ProcessBuilder(arguments).redirectErrorStream(true);
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+        try (OutputStream input = process.getOutputStream()) {
+            input.write((PAYMENT + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        long firstPayment = -1;
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (firstPayment < 0 && line.startsWith(PAYMENT))
+                    firstPayment = System.nanoTime() - start;
+            }
+        }
+        int exitCode = process.waitFor();
+        long exit = System.nanoTime() - start;
+        if (exitCode != 0 || firstPayment < 0)
+            throw new IllegalStateException("Tracker run failed with exit code " + exitCode);
+
+        return new long[]{firstPayment, exit};
+    }
+}
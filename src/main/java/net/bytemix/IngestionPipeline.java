@@ -0,0 +1,372 @@
+package net.bytemix;
+
+import net.bytemix.domain.MoneyParser;
+import net.bytemix.domain.ParseStatus;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentBatch;
+import net.bytemix.services.RejectLog;
+import net.bytemix.services.ShardedLedger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads payments from a stream with a reader stage and a pool of parser workers.
+ *
+ * The reader pulls large blocks from the stream, cuts them on the last line separator and hands them over through a
+ * bounded queue. Workers parse the lines straight from the bytes into a PaymentBatch and register it once per
+ * block. When the workers fall behind, the queue fills up and the reader stops reading (backpressure), so memory
+ * use is bounded by the queue capacity times the block size. A block grows only for a long line, up to
+ * MAX_BLOCK_SIZE; a longer line is rejected and skipped.
+ *
+ * With a ShardedLedger, workers hand their payments over to its shards, which register them into the MoneyService,
+ * instead of registering them themselves.
+ *
+ * Bad lines are counted and recorded in the reject log of the MoneyService, if it has one, with their offset in the
+ * stream.
+ */
+public class IngestionPipeline {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK_SIZE = 16 * BLOCK_SIZE;
+    private static final int BATCH_SIZE = 8192;
+    private static final Block END = new Block(new byte[0]);
+    private static final String SOURCE = "pipeline";
+
+    private static Logger logger = LoggerFactory.getLogger(IngestionPipeline.class);
+    private final MoneyService moneyService;
+    private final ShardedLedger ledger;
+    private final int workerCount;
+    private final BlockingQueue<Block> queue;
+    /**
+     * Blocks that are not in use, so that the reader doesn't allocate a new one for every read
+     */
+    private final BlockingQueue<Block> freeBlocks;
+    private final Object readerLock = new Object();
+    /**
+     * Block the reader is filling, guarded by readerLock
+     */
+    private Block reading;
+    /**
+     * Whether the reader is skipping the rest of a line longer than MAX_BLOCK_SIZE
+     */
+    private boolean skippingLine;
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong payments = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicBoolean ended = new AtomicBoolean();
+    private volatile boolean stopping;
+
+    /**
+     * @param moneyService
+     * @param workerCount number of parser threads
+     * @param queueCapacity number of blocks that can wait for a worker before the reader is blocked
+     */
+    public IngestionPipeline(MoneyService moneyService, int workerCount, int queueCapacity) {
+        this(moneyService, null, workerCount, queueCapacity);
+    }
+
+    /**
+     * @param moneyService
+     * @param ledger ledger that registers the payments into the moneyService, null to register them directly
+     * @param workerCount number of parser threads
+     * @param queueCapacity number of blocks that can wait for a worker before the reader is blocked
+     */
+    public IngestionPipeline(MoneyService moneyService, ShardedLedger ledger, int workerCount, int queueCapacity) {
+        if (moneyService == null)
+            throw new IllegalArgumentException("Money service cannot be null");
+        if (workerCount <= 0 || queueCapacity <= 0)
+            throw new IllegalArgumentException("Number of workers and queue capacity must be positive");
+
+        this.moneyService = moneyService;
+        this.ledger = ledger;
+        this.workerCount = workerCount;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity + workerCount);
+        this.freeBlocks = new ArrayBlockingQueue<>(queueCapacity + workerCount + 1);
+    }
+
+    /**
+     * Reads the stream until its end and waits until all the payments are registered.
+     *
+     * @param input
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run(InputStream input) throws IOException, InterruptedException {
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "payment-pipeline-worker-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        try {
+            read(input);
+        } finally {
+            endWorkers();
+            for (Thread worker : workers)
+                worker.join();
+            awaitLedger();
+        }
+    }
+
+    /**
+     * Stops reading and waits until the blocks that were already read are registered. Meant to be called from a
+     * shutdown hook while run is still reading.
+     */
+    public void shutdown() {
+        stopping = true;
+        try {
+            //Waits for the reader to finish the read it is working on, the whole lines it holds back are handed over
+            synchronized (readerLock) {
+                handOverWholeLines();
+                endWorkers();
+            }
+            for (Thread worker : workers)
+                worker.join();
+            awaitLedger();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getPaymentCount() {
+        return payments.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Waits until the shards registered every payment the workers handed over
+     */
+    private void awaitLedger() {
+        //The request for the totals is queued after the batches
+        if (ledger != null)
+            ledger.getTotals();
+    }
+
+    private void read(InputStream input) throws IOException, InterruptedException {
+        Block block;
+        synchronized (readerLock) {
+            block = takeFreeBlock();
+            reading = block;
+        }
+        while (true) {
+            if (block.length == block.data.length) {
+                synchronized (readerLock) {
+                    block.data = Arrays.copyOf(block.data, block.data.length * 2);
+                }
+            }
+
+            int read = input.read(block.data, block.length, block.data.length - block.length);
+            synchronized (readerLock) {
+                //The whole lines of the block were handed over by shutdown
+                if (stopping)
+                    return;
+
+                if (read < 0) {
+                    reading = null;
+                    if (block.length > 0)
+                        queue.put(block);
+                    return;
+                }
+                block.length += read;
+                if (skippingLine && !skipLongLine(block))
+                    continue;
+
+                int lastSeparator = lastSeparator(block);
+                if (lastSeparator < 0) {
+                    if (block.length == block.data.length && block.data.length >= MAX_BLOCK_SIZE) {
+                        reject(ParseStatus.BAD_FORMAT, block, 0, block.length);
+                        skippingLine = true;
+                        block.offset += block.length;
+                        block.length = 0;
+                    }
+                    continue;
+                }
+                //Only whole lines are handed over, the rest is moved to the next block. Small blocks are handed
+                //over only when there is nothing more to read right away
+                if (block.length < block.data.length / 2 && input.available() > 0)
+                    continue;
+
+                Block next = takeFreeBlock();
+                int rest = block.length - lastSeparator - 1;
+                if (next.data.length < rest)
+                    next.data = new byte[Math.max(BLOCK_SIZE, rest * 2)];
+                System.arraycopy(block.data, lastSeparator + 1, next.data, 0, rest);
+                next.length = rest;
+                next.offset = block.offset + lastSeparator + 1;
+                block.length = lastSeparator + 1;
+                queue.put(block);
+                block = next;
+                reading = block;
+            }
+        }
+    }
+
+    private static int lastSeparator(Block block) {
+        int lastSeparator = block.length - 1;
+        while (lastSeparator >= 0 && block.data[lastSeparator] != '\n')
+            lastSeparator--;
+        return lastSeparator;
+    }
+
+    /**
+     * Removes the end of the skipped line from the start of the block.
+     *
+     * @return false if the block is still all part of the skipped line, and was emptied
+     */
+    private boolean skipLongLine(Block block) {
+        int separator = 0;
+        while (separator < block.length && block.data[separator] != '\n')
+            separator++;
+
+        if (separator == block.length) {
+            block.offset += block.length;
+            block.length = 0;
+            return false;
+        }
+        int rest = block.length - separator - 1;
+        System.arraycopy(block.data, separator + 1, block.data, 0, rest);
+        block.offset += separator + 1;
+        block.length = rest;
+        skippingLine = false;
+        return true;
+    }
+
+    /**
+     * Queues a copy of the whole lines of the block the reader is filling, the reader may still be writing after
+     * them. Called with readerLock held.
+     */
+    private void handOverWholeLines() throws InterruptedException {
+        Block block = reading;
+        reading = null;
+        if (block == null || ended.get())
+            return;
+
+        int lastSeparator = lastSeparator(block);
+        if (lastSeparator < 0)
+            return;
+
+        Block lines = new Block(Arrays.copyOf(block.data, lastSeparator + 1));
+        lines.length = lastSeparator + 1;
+        lines.offset = block.offset;
+        queue.put(lines);
+    }
+
+    private void endWorkers() throws InterruptedException {
+        if (!ended.compareAndSet(false, true))
+            return;
+
+        for (int i = 0; i < workerCount; i++)
+            queue.put(END);
+    }
+
+    private Block takeFreeBlock() {
+        Block block = freeBlocks.poll();
+        if (block == null)
+            return new Block(new byte[BLOCK_SIZE]);
+
+        block.length = 0;
+        block.offset = 0;
+        return block;
+    }
+
+    private void work() {
+        MoneyParser parser = new MoneyParser();
+        PaymentBatch batch = new PaymentBatch(BATCH_SIZE);
+        ShardedLedger.Producer producer = ledger != null ? ledger.producer() : null;
+        try {
+            while (true) {
+                Block block = queue.take();
+                if (block == END)
+                    return;
+
+                try {
+                    parse(block, parser, batch, producer);
+                    register(batch, producer);
+                    if (producer != null)
+                        producer.flush();
+                } catch (RuntimeException e) {
+                    logger.error("Error registering " + batch.size() + " payments", e);
+                } finally {
+                    batch.clear();
+                    freeBlocks.offer(block);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Pipeline worker interrupted");
+        }
+    }
+
+    private void parse(Block block, MoneyParser parser, PaymentBatch batch, ShardedLedger.Producer producer) {
+        ByteBuffer buffer = ByteBuffer.wrap(block.data, 0, block.length);
+        int lineStart = 0;
+        for (int position = 0; position <= block.length; position++) {
+            if (position < block.length && block.data[position] != '\n')
+                continue;
+            if (position == block.length && lineStart == block.length)
+                break;
+
+            int lineEnd = position;
+            if (lineEnd > lineStart && block.data[lineEnd - 1] == '\r')
+                lineEnd--;
+
+            if (batch.isFull())
+                register(batch, producer);
+
+            ParseStatus status = parser.parse(buffer, lineStart, lineEnd);
+            if (status == ParseStatus.OK) {
+                batch.add(parser.getCurrencyIndex(), parser.getUnscaledValue(), parser.getScale());
+            } else if (status == ParseStatus.OUT_OF_RANGE) {
+                batch.add(parser.toMoneyAmount());
+            } else {
+                reject(status, block, lineStart, lineEnd);
+            }
+            lineStart = position + 1;
+        }
+    }
+
+    private void reject(ParseStatus status, Block block, int lineStart, int lineEnd) {
+        moneyService.getMetrics().parseFailed(1);
+        rejected.incrementAndGet();
+        RejectLog rejects = moneyService.getRejectLog();
+        if (rejects != null)
+            rejects.reject(SOURCE, block.offset + lineStart, status, block.data, lineStart, lineEnd);
+    }
+
+    private void register(PaymentBatch batch, ShardedLedger.Producer producer) {
+        if (batch.isEmpty())
+            return;
+
+        if (producer != null)
+            producer.add(batch);
+        else
+            moneyService.registerPayments(batch);
+        payments.addAndGet(batch.size());
+        batch.clear();
+    }
+
+    private static final class Block {
+        private byte[] data;
+        private int length;
+        /**
+         * Position of the first byte in the stream
+         */
+        private long offset;
+
+        private Block(byte[] data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package net.bytemix;
+
+import net.bytemix.metrics.LatencyHistogram;
+import net.bytemix.metrics.TrackerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runnable that writes the metrics of the tracker to the log, including the rate of payments since the previous run.
+ */
+public class MetricsReporter implements Runnable {
+    private static Logger logger = LoggerFactory.getLogger(MetricsReporter.class);
+    private final TrackerMetrics metrics;
+    private long lastPayments;
+    private long lastNanos = System.nanoTime();
+
+    public MetricsReporter(TrackerMetrics metrics) {
+        if (metrics == null)
+            throw new IllegalArgumentException("Metrics cannot be null");
+
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void run() {
+        long payments = metrics.getPaymentCount();
+        long now = System.nanoTime();
+        double seconds = (now - lastNanos) / 1e9;
+        double rate = seconds <= 0 ? 0 : (payments - lastPayments) / seconds;
+        lastPayments = payments;
+        lastNanos = now;
+
+        StringBuilder report = new StringBuilder(256);
+        report.append("payments=").append(payments)
+                .append(" (").append(Math.round(rate)).append("/s)")
+                .append(", parseFailures=").append(metrics.getParseFailureCount());
+        append(report, "register", metrics.getRegisterLatency());
+        append(report, "batch", metrics.getBatchLatency());
+        append(report, "exchange", metrics.getExchangeLatency());
+        append(report, "print", metrics.getPrintLatency());
+        logger.info(report.toString());
+    }
+
+    /**
+     * Appends e.g. ", register[n=10 p50=120ns p99=900ns p999=2100ns max=5000ns]"
+     */
+    private static void append(StringBuilder report, String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0)
+            return;
+
+        report.append(", ").append(name)
+                .append("[n=").append(histogram.getCount())
+                .append(" p50=").append(histogram.getPercentile(50))
+                .append("ns p99=").append(histogram.getPercentile(99))
+                .append("ns p999=").append(histogram.getPercentile(99.9))
+                .append("ns max=").append(histogram.getMax()).append("ns]");
+    }
+}
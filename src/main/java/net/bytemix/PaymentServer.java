@@ -0,0 +1,450 @@
+package net.bytemix;
+
+import net.bytemix.domain.MoneyParser;
+import net.bytemix.domain.ParseStatus;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentBatch;
+import net.bytemix.services.PaymentJournal;
+import net.bytemix.services.RejectLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP endpoint that accepts payments in the same line format as the standard input ("USD 100").
+ *
+ * Every line is answered with "OK" once the payment is registered, and fsynced if the MoneyService has a journal,
+ * or with "ERR description" if it has bad format or couldn't be registered. The answers of a batch are only queued
+ * after it is registered, so a payment the journal failed to write is never answered with "OK".
+ * Clients may pipeline, i.e. send any number of lines without waiting for the answers, which come in the same order.
+ *
+ * Connections are served by a few event loops, each with its own NIO selector, so the number of threads doesn't
+ * depend on the number of connections. A loop parses all the lines that arrived on its connections in one select
+ * round into a single PaymentBatch, registers it, and only then writes the answers. A client that doesn't read its
+ * answers is not read from either, until it does.
+ */
+public class PaymentServer implements Closeable {
+    private static final int BATCH_SIZE = 8192;
+    private static final int INPUT_BUFFER_SIZE = 4096;
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+    private static final byte[] OK = "OK\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NOT_REGISTERED = "ERR payment couldn't be registered\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static Logger logger = LoggerFactory.getLogger(PaymentServer.class);
+    private final MoneyService moneyService;
+    private final InetSocketAddress address;
+    private final EventLoop[] loops;
+    private final AtomicLong payments = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * @param moneyService
+     * @param address address to listen on, port 0 picks a free port
+     * @param loopCount number of event loop threads
+     */
+    public PaymentServer(MoneyService moneyService, InetSocketAddress address, int loopCount) {
+        if (moneyService == null || address == null)
+            throw new IllegalArgumentException("Money service and address must be specified");
+        if (loopCount <= 0)
+            throw new IllegalArgumentException("Number of event loops must be positive");
+
+        this.moneyService = moneyService;
+        this.address = address;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    /**
+     * Starts listening and returns right away.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            loops[i].thread = new Thread(loops[i]::run, "payment-server-loop-" + i);
+            loops[i].thread.start();
+        }
+
+        acceptor = new Thread(this::accept, "payment-server-acceptor");
+        acceptor.start();
+        logger.info("Payment server listening on " + serverChannel.getLocalAddress());
+    }
+
+    /**
+     * @return port the server listens on
+     * @throws IOException
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    public long getPaymentCount() {
+        return payments.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Stops accepting and closes all the connections. Payments that were answered are registered.
+     */
+    @Override
+    public void close() {
+        if (closed || serverChannel == null)
+            return;
+
+        closed = true;
+        try {
+            serverChannel.close();
+            acceptor.join();
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+                loop.thread.join();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing the payment server", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (!closed) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connections.incrementAndGet();
+
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.newChannels.add(channel);
+                loop.selector.wakeup();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed)
+                    logger.warn("Error accepting a connection", e);
+            }
+        }
+    }
+
+    private final class EventLoop {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final MoneyParser parser = new MoneyParser();
+        private final PaymentBatch batch = new PaymentBatch(BATCH_SIZE);
+        /**
+         * Connections with answers to write after the batch is registered
+         */
+        private final List<Connection> answered = new ArrayList<>();
+        /**
+         * Connections with lines waiting for the registration of the batch before they are answered
+         */
+        private final List<Connection> waiting = new ArrayList<>();
+        private Thread thread;
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    registerNewChannels();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                read(connection);
+                            if (key.isValid() && key.isWritable())
+                                answered.add(connection);
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            logger.error("Error serving " + connection.source, e);
+                            connection.close();
+                        }
+                    }
+
+                    register();
+                    for (Connection connection : answered)
+                        connection.write();
+                    answered.clear();
+                }
+            } catch (IOException e) {
+                logger.error("Payment server event loop failed", e);
+            } finally {
+                register();
+                for (SelectionKey key : selector.keys())
+                    ((Connection) key.attachment()).close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.warn("Error closing selector", e);
+                }
+            }
+        }
+
+        private void registerNewChannels() throws IOException {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            int read = connection.channel.read(connection.input);
+            if (read < 0) {
+                //The client is done sending, answers for its last lines are still written
+                connection.inputClosed = true;
+                connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+                if (connection.input.position() > 0)
+                    connection.input.put((byte) '\n');
+                parseLines(connection);
+                answered.add(connection);
+                return;
+            }
+
+            parseLines(connection);
+            answered.add(connection);
+            if (!connection.input.hasRemaining()) {
+                //Line longer than the whole buffer, the rest of it is skipped. It is counted when its end arrives
+                if (!connection.skippingLine)
+                    reject(connection, ParseStatus.BAD_FORMAT, connection.lines + 1, connection.input.array(), 0,
+                            connection.input.position());
+                connection.skippingLine = true;
+                connection.input.clear();
+            }
+        }
+
+        private void parseLines(Connection connection) {
+            ByteBuffer input = connection.input;
+            byte[] data = input.array();
+            int end = input.position();
+            int lineStart = 0;
+            for (int position = 0; position < end; position++) {
+                if (data[position] != '\n')
+                    continue;
+
+                connection.lines++;
+                if (connection.skippingLine) {
+                    connection.skippingLine = false;
+                    lineStart = position + 1;
+                    continue;
+                }
+
+                int lineEnd = position > lineStart && data[position - 1] == '\r' ? position - 1 : position;
+                if (batch.isFull())
+                    register();
+
+                ParseStatus status = parser.parse(input, lineStart, lineEnd);
+                if (status == ParseStatus.OK) {
+                    batch.add(parser.getCurrencyIndex(), parser.getUnscaledValue(), parser.getScale());
+                    await(connection, null);
+                } else if (status == ParseStatus.OUT_OF_RANGE) {
+                    batch.add(parser.toMoneyAmount());
+                    await(connection, null);
+                } else {
+                    reject(connection, status, connection.lines, data, lineStart, lineEnd);
+                }
+                lineStart = position + 1;
+            }
+
+            //Keeps the unfinished line for the next read
+            input.limit(end).position(lineStart);
+            input.compact();
+        }
+
+        private void reject(Connection connection, ParseStatus status, long line, byte[] data, int start, int end) {
+            moneyService.getMetrics().parseFailed(1);
+            rejected.incrementAndGet();
+            RejectLog rejects = moneyService.getRejectLog();
+            if (rejects != null)
+                rejects.reject(connection.source, line, status, data, start, end);
+            await(connection, status);
+        }
+
+        /**
+         * Queues the answer behind the ones waiting for the batch, so the answers keep the order of the lines
+         *
+         * @param error null if the line was accepted
+         */
+        private void await(Connection connection, ParseStatus error) {
+            if (connection.pendingCount == 0)
+                waiting.add(connection);
+            connection.pend(error);
+        }
+
+        /**
+         * Registers the batch and answers all the lines that waited for it
+         */
+        private void register() {
+            boolean registered = true;
+            if (!batch.isEmpty()) {
+                PaymentJournal journal = moneyService.getJournal();
+                try {
+                    moneyService.registerPayments(batch);
+                    if (journal != null)
+                        journal.awaitDurable(journal.getAppendedSequence());
+                    payments.addAndGet(batch.size());
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Couldn't register " + batch.size() + " payments", e);
+                    registered = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    registered = false;
+                } finally {
+                    batch.clear();
+                }
+            }
+
+            for (Connection connection : waiting)
+                connection.answerPending(registered);
+            waiting.clear();
+        }
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        /**
+         * Remote address, for the reject log
+         */
+        private final String source;
+        private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        private ByteBuffer output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        private SelectionKey key;
+        private boolean inputClosed;
+        private boolean skippingLine;
+        /**
+         * Number of lines received so far, the last one included
+         */
+        private long lines;
+        /**
+         * Answers waiting for the batch, null for an accepted line
+         */
+        private ParseStatus[] pending = new ParseStatus[16];
+        private int pendingCount;
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.source = String.valueOf(channel.getRemoteAddress());
+        }
+
+        private void pend(ParseStatus error) {
+            if (pendingCount == pending.length)
+                pending = Arrays.copyOf(pending, pendingCount * 2);
+            pending[pendingCount++] = error;
+        }
+
+        /**
+         * @param registered whether the accepted lines were registered
+         */
+        private void answerPending(boolean registered) {
+            for (int i = 0; i < pendingCount; i++) {
+                ParseStatus error = pending[i];
+                pending[i] = null;
+                if (error != null)
+                    answer(error);
+                else
+                    answer(registered ? OK : NOT_REGISTERED);
+            }
+            pendingCount = 0;
+        }
+
+        private void answer(byte[] line) {
+            ensureOutput(line.length);
+            output.put(line);
+        }
+
+        private void answer(ParseStatus error) {
+            byte[] description = error.getDescription().getBytes(StandardCharsets.US_ASCII);
+            ensureOutput(description.length + 5);
+            output.put((byte) 'E').put((byte) 'R').put((byte) 'R').put((byte) ' ').put(description)
+                    .put((byte) '\n');
+        }
+
+        private void ensureOutput(int length) {
+            if (output.remaining() >= length)
+                return;
+
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + length));
+            output.flip();
+            bigger.put(output);
+            output = bigger;
+        }
+
+        /**
+         * Writes as much of the answers as the socket takes. While some are left, the connection waits for the
+         * socket to become writable instead of reading more lines.
+         */
+        private void write() {
+            if (!key.isValid())
+                return;
+
+            try {
+                output.flip();
+                channel.write(output);
+                output.compact();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            if (output.position() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (inputClosed) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+                if (output.capacity() > OUTPUT_BUFFER_SIZE)
+                    output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+            }
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing connection", e);
+            }
+        }
+    }
+}
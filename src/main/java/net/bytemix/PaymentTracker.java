@@ -1,15 +1,38 @@
 package net.bytemix;
 
 import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.MoneyFormat;
+import net.bytemix.domain.MoneyParser;
+import net.bytemix.domain.ParseStatus;
+import net.bytemix.domain.PrecisionPolicy;
+import net.bytemix.metrics.TrackerMetrics;
+import net.bytemix.services.BinaryPaymentFileWriter;
+import net.bytemix.services.ExchangeRateLoader;
 import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentBatch;
+import net.bytemix.services.PaymentJournal;
+import net.bytemix.services.PaymentWindows;
+import net.bytemix.services.PaymentReplay;
+import net.bytemix.services.PaymentTotals;
+import net.bytemix.services.RejectLog;
+import net.bytemix.services.ShardedLedger;
+import net.bytemix.services.ReplayResult;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Scanner;
+import java.time.Clock;
+import java.util.Currency;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -19,9 +42,21 @@ import java.util.concurrent.TimeUnit;
  */
 public class PaymentTracker
 {
-    private static Logger logger = LoggerFactory.getLogger(PaymentTracker.class);
-    private static MoneyService moneyService = MoneyService.getInstance();
+    private static MoneyService moneyService = new MoneyService();
+    private static final int INPUT_BATCH_SIZE = 4096;
+    private static final int REJECT_LOG_CAPACITY = 8192;
+    private static final long REJECT_SUMMARY_MILLIS = 10000;
+    /**
+     * Bad lines of the standard input get an immediate hint on stderr, at most this many per HINT_INTERVAL_MILLIS
+     */
+    private static final int HINTS_PER_INTERVAL = 5;
+    private static final long HINT_INTERVAL_MILLIS = 1000;
     private static Options options;
+    private static PaymentJournal journal;
+    private static IngestionPipeline pipeline;
+    private static ShardedLedger ledger;
+    private static PaymentServer server;
+    private static RejectLog rejectLog;
 
     public static void main( String[] args ) throws ParseException {
         options = prepareCmdOptions();
@@ -30,7 +65,7 @@ public class PaymentTracker
         try {
             commandLine = new DefaultParser().parse(options, args);
         } catch (Exception ex) {
-            logger.error("Error parsing arguments ", ex);
+            Log.logger.error("Error parsing arguments ", ex);
             printHelp();
             return;
         }
@@ -40,13 +75,44 @@ public class PaymentTracker
             return;
         }
 
+        if (commandLine.hasOption("c")) {
+            convert(commandLine.getOptionValues("c"));
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(PaymentTracker::shutdown));
+        boolean batch = commandLine.hasOption("b");
+        //A batch run prints once, the scheduler thread is started only for the metrics
+        ScheduledExecutorService executorService = batch && !commandLine.hasOption("m")
+                ? null : Executors.newSingleThreadScheduledExecutor();
+
+        if (commandLine.hasOption("m"))
+            startMetrics(commandLine, executorService);
+
+        openRejectLog(commandLine.getOptionValue("j"));
+        if (commandLine.hasOption("s"))
+            moneyService.setWindows(new PaymentWindows(Clock.systemUTC()));
+
+        if (commandLine.hasOption("w")) {
+            Path directory = FileSystems.getDefault().getPath(commandLine.getOptionValue("w"));
+            try {
+                journal = new PaymentJournal(directory);
+                journal.getRecoveredTotals().applyTo(moneyService);
+                moneyService.setJournal(journal);
+            } catch (IOException e) {
+                System.err.println("Couldn't open the payment journal");
+                Log.logger.error("Error opening the payment journal in " + directory, e);
+                System.exit(1);
+            }
+        }
+
         if (commandLine.hasOption("f")) {
             String filePath = commandLine.getOptionValue("f");
             Path file = FileSystems.getDefault().getPath(filePath);
 
             if (!Files.exists(file)) {
                 System.err.println("File doesn't exist");
-                logger.error("User supplied non-existing file: "+ filePath);
+                Log.logger.error("User supplied non-existing file: "+ filePath);
                 System.exit(1);
             }
 
@@ -58,14 +124,51 @@ public class PaymentTracker
 
             if (!Files.exists(file)) {
                 System.err.println("File doesn't exist");
-                logger.error("User supplied non-existing file: "+ filePath);
+                Log.logger.error("User supplied non-existing file: "+ filePath);
                 System.exit(1);
             }
 
-            moneyService.loadExchangeRatesFromFile(file);
+            //Inverse rates are rounded like those of saveExchangeRate, -d only changes their number of digits
+            PrecisionPolicy policy = moneyService.getPrecisionPolicy();
+            ExchangeRateLoader loader = new ExchangeRateLoader(policy.getInverseRateScale(), policy.getRounding(),
+                    ExchangeRateLoader.DEFAULT_TOLERANCE);
+            if (commandLine.hasOption("d")) {
+                String digits = commandLine.getOptionValue("d");
+                try {
+                    loader = new ExchangeRateLoader(Integer.parseInt(digits.trim()), policy.getRounding(),
+                            ExchangeRateLoader.DEFAULT_TOLERANCE);
+                } catch (IllegalArgumentException ex) {
+                    Log.logger.warn("Error parsing 'rate-digits' argument", ex);
+                }
+            }
+
+            //A bad rates file only loses the conversions, the payments are still tracked
+            if (!moneyService.loadExchangeRatesFromFile(file, loader).isValid()) {
+                System.err.println("Exchange rates file has errors, running without its rates, see the log");
+                Log.logger.error("Running without the exchange rates of " + filePath);
+            }
         }
 
-        Scanner scanner = new Scanner(System.in);
+        if (commandLine.hasOption("r")) {
+            String currencyCode = commandLine.getOptionValue("r");
+            try {
+                moneyService.setReportCurrency(Currency.getInstance(currencyCode.trim().toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Unknown currency " + currencyCode);
+                Log.logger.error("User supplied unknown report currency: " + currencyCode);
+                System.exit(1);
+            }
+        }
+
+        if (commandLine.hasOption("a")) {
+            replay(commandLine);
+            return;
+        }
+
+        if (batch) {
+            runBatch(commandLine);
+            return;
+        }
 
         long secondsBetweenPrintouts = 60;
 
@@ -74,21 +177,283 @@ public class PaymentTracker
             try {
                 secondsBetweenPrintouts = Long.parseLong(timeoutLine);
             } catch (Exception ex) {
-                logger.warn("Error parsing 'timeout' argument", ex);
+                Log.logger.warn("Error parsing 'timeout' argument", ex);
             }
         }
-        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
-        executorService.scheduleWithFixedDelay(new PeriodicMoneyPrinter(), 0, secondsBetweenPrintouts, TimeUnit.SECONDS);
+        executorService.scheduleWithFixedDelay(new PeriodicMoneyPrinter(moneyService, commandLine.hasOption("s")), 0, secondsBetweenPrintouts, TimeUnit.SECONDS);
+
+        if (commandLine.hasOption("l"))
+            startServer(commandLine.getOptionValue("l"));
+
+        if (commandLine.hasOption("p")) {
+            runPipeline(commandLine);
+            return;
+        }
+
+        try {
+            readPayments(new BufferedReader(new InputStreamReader(System.in)));
+        } catch (IOException e) {
+            Log.logger.error("Error reading the standard input", e);
+        }
+    }
+
+    /**
+     * Records the bad input lines into the file, or logs a summary of them when there is no file.
+     */
+    private static void openRejectLog(String filePath) {
+        try {
+            rejectLog = filePath == null ? new RejectLog() : new RejectLog(
+                    FileSystems.getDefault().getPath(filePath), REJECT_LOG_CAPACITY, REJECT_SUMMARY_MILLIS);
+            moneyService.setRejectLog(rejectLog);
+        } catch (IOException e) {
+            System.err.println("Couldn't open the reject file");
+            Log.logger.error("Error opening the reject file " + filePath, e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the standard input unless the payments came from -f, prints the balances and exits.
+     */
+    private static void runBatch(CommandLine commandLine) {
+        if (!commandLine.hasOption("f")) {
+            if (commandLine.hasOption("p")) {
+                runPipeline(commandLine);
+            } else {
+                try {
+                    readPayments(new BufferedReader(new InputStreamReader(System.in)));
+                } catch (IOException e) {
+                    Log.logger.error("Error reading the standard input", e);
+                }
+            }
+        }
+
+        try {
+            new ReportRenderer(moneyService, commandLine.hasOption("s")).writeTo(System.out);
+        } catch (IOException e) {
+            Log.logger.error("Couldn't print the payments", e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Aggregates all the files of a directory or glob pattern in parallel, prints the totals of every file, the
+     * report of all of them together and the throughput, and exits.
+     */
+    private static void replay(CommandLine commandLine) {
+        String location = commandLine.getOptionValue("a");
+        List<Path> files;
+        try {
+            files = PaymentReplay.findFiles(location);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Couldn't list the files of " + location);
+            Log.logger.error("Error listing replay files " + location, e);
+            System.exit(1);
+            return;
+        }
+        if (files.isEmpty()) {
+            System.err.println("No file matches " + location);
+            System.exit(1);
+        }
+
+        ReplayResult result = new PaymentReplay().replay(files);
+        StringBuilder line = new StringBuilder(128);
+        for (ReplayResult.FileResult file : result.getFiles()) {
+            line.setLength(0);
+            line.append(file.getFile()).append(": ");
+            if (file.getError() != null) {
+                line.append("failed: ").append(file.getError());
+            } else {
+                PaymentTotals totals = file.getTotals();
+                line.append(totals.getPaymentCount()).append(" payments, ").append(totals.getRejectedCount())
+                        .append(" bad lines in ").append(file.getNanos() / 1000000).append(" ms (")
+                        .append(Math.round(file.getPaymentsPerSecond())).append(" payments/s)");
+                String separator = ": ";
+                for (MoneyAmount amount : totals.getMoneyAmounts()) {
+                    MoneyFormat.append(line.append(separator), amount);
+                    separator = ", ";
+                }
+            }
+            System.out.println(line);
+        }
+
+        result.getTotals().applyTo(moneyService);
+        try {
+            new ReportRenderer(moneyService, false).writeTo(System.out);
+        } catch (IOException e) {
+            Log.logger.error("Couldn't print the payments", e);
+        }
+
+        double seconds = result.getNanos() / 1e9;
+        System.out.printf("Replayed %d files (%d failed), %d payments, %.1f MB in %.2f s: %.0f payments/s, %.1f MB/s%n",
+                files.size(), result.getFailedCount(), result.getTotals().getPaymentCount(),
+                result.getBytes() / 1e6, seconds, result.getPaymentsPerSecond(),
+                seconds == 0 ? 0 : result.getBytes() / 1e6 / seconds);
+        System.exit(result.getFailedCount() > 0 ? 1 : 0);
+    }
+
+    private static void convert(String[] files) {
+        Path textFile = FileSystems.getDefault().getPath(files[0]);
+        Path binaryFile = FileSystems.getDefault().getPath(files[1]);
+        if (!Files.exists(textFile)) {
+            System.err.println("File doesn't exist");
+            Log.logger.error("User supplied non-existing file: " + files[0]);
+            System.exit(1);
+        }
+
+        try {
+            long records = BinaryPaymentFileWriter.convert(textFile, binaryFile);
+            System.out.println(records + " payments written to " + binaryFile);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Couldn't convert the file");
+            Log.logger.error("Error converting " + textFile + " to " + binaryFile, e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Turns on the latency recording, exposes the metrics through JMX and logs them periodically.
+     */
+    private static void startMetrics(CommandLine commandLine, ScheduledExecutorService executorService) {
+        long secondsBetweenDumps = 60;
+        try {
+            if (commandLine.getOptionValue("m") != null)
+                secondsBetweenDumps = Long.parseLong(commandLine.getOptionValue("m"));
+        } catch (NumberFormatException ex) {
+            Log.logger.warn("Error parsing 'metrics' argument", ex);
+        }
+
+        TrackerMetrics metrics = moneyService.getMetrics();
+        metrics.setLatencyEnabled(true);
+        try {
+            metrics.registerMBean("payment-tracker");
+        } catch (JMException e) {
+            Log.logger.error("Error registering the metrics MBean", e);
+        }
+        executorService.scheduleWithFixedDelay(new MetricsReporter(metrics), secondsBetweenDumps,
+                secondsBetweenDumps, TimeUnit.SECONDS);
+    }
 
-        while (true) {
-            String line = scanner.nextLine();
+    /**
+     * Accepts payments on the port of the loopback interface, next to the standard input.
+     */
+    private static void startServer(String port) {
+        try {
+            server = new PaymentServer(moneyService,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port)),
+                    Runtime.getRuntime().availableProcessors());
+            server.start();
+        } catch (NumberFormatException | IOException e) {
+            System.err.println("Couldn't listen on port " + port);
+            Log.logger.error("Error starting the payment server on port " + port, e);
+            System.exit(1);
+        }
+    }
+
+    private static void runPipeline(CommandLine commandLine) {
+        int workers = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = 16;
+        int shards = 0;
+        try {
+            if (commandLine.getOptionValue("p") != null)
+                workers = Integer.parseInt(commandLine.getOptionValue("p"));
+            if (commandLine.hasOption("q"))
+                queueCapacity = Integer.parseInt(commandLine.getOptionValue("q"));
+            if (commandLine.hasOption("k"))
+                shards = Integer.parseInt(commandLine.getOptionValue("k"));
+        } catch (NumberFormatException ex) {
+            Log.logger.warn("Error parsing 'pipeline', 'queue' or 'shards' argument", ex);
+        }
+
+        if (shards > 0)
+            ledger = new ShardedLedger(moneyService, "payment-ledger", shards, INPUT_BATCH_SIZE, queueCapacity);
+        pipeline = new IngestionPipeline(moneyService, ledger, workers, queueCapacity);
+        try {
+            pipeline.run(System.in);
+        } catch (IOException | InterruptedException e) {
+            Log.logger.error("Error reading the standard input", e);
+        }
+        if (pipeline.getRejectedCount() > 0)
+            System.err.println(pipeline.getRejectedCount() + " lines had wrong input format");
+        Log.logger.info("Pipeline registered " + pipeline.getPaymentCount() + " payments, rejected "
+                + pipeline.getRejectedCount() + " lines");
+    }
+
+    /**
+     * Registers everything that was already read and closes the ledger, the journal and the reject log, in this order.
+     */
+    private static void shutdown() {
+        if (server != null)
+            server.close();
+        if (pipeline != null)
+            pipeline.shutdown();
+        if (ledger != null)
+            ledger.close();
+
+        if (journal != null) {
             try {
-                moneyService.registerPayment(new MoneyAmount(line));
-            } catch (MoneyParseException parseException) {
-                System.err.println("Wrong input format. Please enter (without quotes): \"<CURRENCY_CODE> <DECIMAL VALUE>\"");
-                logger.info("Bad user input", parseException);
+                journal.close();
+            } catch (IOException e) {
+                Log.logger.error("Error closing the payment journal", e);
+            }
+        }
+        if (rejectLog != null)
+            rejectLog.close();
+    }
+
+    /**
+     * Registers the payments from the reader in batches. Interactive input is registered line by line, because
+     * the reader has nothing more buffered after each line. Bad lines go to the reject log and get a hint on stderr
+     * right away. A flood of bad lines from piped input only gets a few hints per second, and the count of all of
+     * them when the input ends.
+     *
+     * @param reader
+     * @throws IOException
+     */
+    private static void readPayments(BufferedReader reader) throws IOException {
+        MoneyParser parser = new MoneyParser();
+        PaymentBatch batch = new PaymentBatch(INPUT_BATCH_SIZE);
+
+        String line;
+        long lineNumber = 0;
+        long rejected = 0;
+        long suppressed = 0;
+        long hintInterval = 0;
+        int hints = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            ParseStatus status = parser.parse(line);
+            if (status == ParseStatus.OK) {
+                batch.add(parser.getCurrencyIndex(), parser.getUnscaledValue(), parser.getScale());
+            } else if (status == ParseStatus.OUT_OF_RANGE) {
+                batch.add(parser.toMoneyAmount());
+            } else {
+                moneyService.getMetrics().parseFailed(1);
+                rejectLog.reject("stdin", lineNumber, status, line);
+                rejected++;
+
+                long now = System.currentTimeMillis();
+                if (now - hintInterval >= HINT_INTERVAL_MILLIS) {
+                    hintInterval = now;
+                    hints = 0;
+                }
+                if (hints++ < HINTS_PER_INTERVAL)
+                    System.err.println("Wrong input format on line " + lineNumber
+                            + ". Please enter (without quotes): \"<CURRENCY_CODE> <DECIMAL VALUE>\"");
+                else
+                    suppressed++;
+            }
+
+            if (!batch.isEmpty() && (batch.isFull() || !reader.ready())) {
+                moneyService.registerPayments(batch);
+                batch.clear();
             }
         }
+        if (!batch.isEmpty())
+            moneyService.registerPayments(batch);
+        if (suppressed > 0 || (rejected > 0 && System.console() == null))
+            System.err.println(rejected + " lines had wrong input format. Expected (without quotes): \"<CURRENCY_CODE> <DECIMAL VALUE>\"");
     }
 
     private static void printHelp() {
@@ -115,6 +480,103 @@ public class PaymentTracker
                 .desc("File that contains the exchange rates. Each line of the file should contain three comma-separated entries: \n <CODE>, <CODE>, <RATE>")
                 .build()
         );
+        options.addOption(Option.builder("d")
+                .longOpt("rate-digits")
+                .hasArg()
+                .argName("DIGITS")
+                .optionalArg(false)
+                .desc("Number of decimal places of the inverse exchange rates computed for the pairs that are in the -e file only in one direction. Default is 5")
+                .build()
+        );
+        options.addOption(Option.builder("a")
+                .longOpt("replay")
+                .hasArg()
+                .argName("DIRECTORY|GLOB")
+                .optionalArg(false)
+                .desc("Aggregates all the payment files of the directory or matching the glob pattern (e.g. 'payments/2017-*.txt') in parallel, prints the totals of each file and of all of them, and exits")
+                .build()
+        );
+        options.addOption(Option.builder("b")
+                .longOpt("batch")
+                .desc("Prints the balances once and exits. The payments are read from -f, or from the standard input until its end when there is no -f")
+                .build()
+        );
+        options.addOption(Option.builder("j")
+                .longOpt("rejects")
+                .hasArg()
+                .argName("FILE")
+                .optionalArg(false)
+                .desc("Appends the input lines that couldn't be parsed to the file, with their source, line number (byte offset for files and the pipeline) and reason. Without it, only the first few per 10 seconds and a summary are logged")
+                .build()
+        );
+        options.addOption(Option.builder("c")
+                .longOpt("convert")
+                .numberOfArgs(2)
+                .argName("TEXT_FILE> <BINARY_FILE")
+                .desc("Converts a payment file from the text format to the binary one and exits. Binary files load much faster with -f")
+                .build()
+        );
+        options.addOption(Option.builder("w")
+                .longOpt("journal")
+                .hasArg()
+                .argName("DIRECTORY")
+                .optionalArg(false)
+                .desc("Journals the payments entered on the standard input into the directory and restores them at startup. Payments loaded with -f are not journaled")
+                .build()
+        );
+        options.addOption(Option.builder("p")
+                .longOpt("pipeline")
+                .hasArg()
+                .argName("WORKERS")
+                .optionalArg(true)
+                .desc("Reads high-volume input from the standard input with the given number of parser threads (default is the number of cores). Bad lines are only counted and logged")
+                .build()
+        );
+        options.addOption(Option.builder("q")
+                .longOpt("queue")
+                .hasArg()
+                .argName("BLOCKS")
+                .optionalArg(false)
+                .desc("Number of 64KB input blocks that can wait for a parser thread in the pipeline mode before reading is paused. Default is 16")
+                .build()
+        );
+        options.addOption(Option.builder("k")
+                .longOpt("shards")
+                .hasArg()
+                .argName("SHARDS")
+                .optionalArg(false)
+                .desc("In the pipeline mode, parser threads hand the payments over to SHARDS writer threads, each registering the currencies it owns, instead of registering them themselves")
+                .build()
+        );
+        options.addOption(Option.builder("l")
+                .longOpt("listen")
+                .hasArg()
+                .argName("PORT")
+                .optionalArg(false)
+                .desc("Also accepts payments over TCP on the port of localhost, one payment per line. Every line is answered with OK or ERR")
+                .build()
+        );
+        options.addOption(Option.builder("m")
+                .longOpt("metrics")
+                .hasArg()
+                .argName("SECONDS")
+                .optionalArg(true)
+                .desc("Records latencies, exposes the metrics through JMX and writes them to the log every SECONDS (default is 60)")
+                .build()
+        );
+        options.addOption(Option.builder("r")
+                .longOpt("report")
+                .hasArg()
+                .argName("CODE")
+                .optionalArg(false)
+                .desc("Currency to which the printed balances are converted. Default is USD")
+                .build()
+        );
+        options.addOption(Option.builder("s")
+                .longOpt("windows")
+                .desc("Tracks the payments entered while running and prints their totals and counts of the last minute, hour and 24 hours next to each balance. Payments loaded from files or the journal are not included")
+                .build()
+        );
         options.addOption(Option.builder("t")
                 .longOpt("timeout")
                 .hasArg()
@@ -125,4 +587,12 @@ public class PaymentTracker
         );
         return options;
     }
+
+    /**
+     * Logging is initialized only when something is logged for the first time, which a run without problems may
+     * never do
+     */
+    private static final class Log {
+        private static final Logger logger = LoggerFactory.getLogger(PaymentTracker.class);
+    }
 }
@@ -1,12 +1,10 @@
 package net.bytemix;
 
-import net.bytemix.domain.MoneyAmount;
 import net.bytemix.services.MoneyService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Currency;
-import java.util.List;
+import java.io.IOException;
 
 /**
  * Runnable that prints out all the registered payments.
@@ -15,15 +13,31 @@ import java.util.List;
  */
 public class PeriodicMoneyPrinter implements Runnable {
     private static Logger logger = LoggerFactory.getLogger(PeriodicMoneyPrinter.class);
-    private static MoneyService moneyService = MoneyService.getInstance();
+    private final MoneyService moneyService;
+    private final ReportRenderer renderer;
+
+    public PeriodicMoneyPrinter(MoneyService moneyService) {
+        this(moneyService, false);
+    }
+
+    /**
+     * @param moneyService
+     * @param showWindows whether to print the totals of the last minute, hour and day next to the balances
+     */
+    public PeriodicMoneyPrinter(MoneyService moneyService, boolean showWindows) {
+        this.moneyService = moneyService;
+        this.renderer = new ReportRenderer(moneyService, showWindows);
+    }
 
     @Override
     public void run() {
         logger.debug("MoneyPrinter triggered");
-        List<MoneyAmount> amounts = moneyService.getMoneyAmounts();
-
-        for (MoneyAmount moneyAmount : amounts) {
-            System.out.println(moneyService.getAmountStringWithExchange(moneyAmount));
+        long start = moneyService.getMetrics().start();
+        try {
+            renderer.writeTo(System.out);
+            moneyService.getMetrics().recordPrint(start);
+        } catch (IOException e) {
+            logger.error("Couldn't print the payments", e);
         }
     }
 }
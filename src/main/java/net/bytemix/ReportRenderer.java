@@ -0,0 +1,140 @@
+package net.bytemix;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyFormat;
+import net.bytemix.services.BalanceSnapshot;
+import net.bytemix.services.ConvertedView;
+import net.bytemix.services.ExchangeRateMatrix;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.TimeWindow;
+import net.bytemix.services.WindowTotal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Renders the report of all the balances, one line per currency, followed by their grand total in the report
+ * currency.
+ *
+ * The lines come from the report view of the MoneyService, which converts and formats a balance again only when
+ * the balance or the exchange rates changed. All the lines and the total come from one BalanceSnapshot, so they
+ * add up even while payments keep coming. The whole report is copied into one reused byte buffer and written with
+ * a single write, instead of one println per line. When neither the balances, the exchange rates nor the report
+ * currency changed since the previous report, the buffer is written again as it is, so an idle tracker doesn't
+ * render anything. The report still lists every currency on every run, unchanged ones included.
+ * Not thread-safe, meant to be used by a single printer thread.
+ *
+ * Optionally every line also shows the totals of the recent payments (see TimeWindow). Those change with time even
+ * without new payments, so such a report is rendered on every run.
+ */
+public class ReportRenderer {
+    private final MoneyService moneyService;
+    private final boolean showWindows;
+    private final StringBuilder line = new StringBuilder(64);
+    private byte[] buffer = new byte[4096];
+    private int renderedLength;
+    private long renderedSequence = -1;
+    private ConvertedView renderedView;
+    private ExchangeRateMatrix renderedRates;
+
+    public ReportRenderer(MoneyService moneyService) {
+        this(moneyService, false);
+    }
+
+    /**
+     * @param moneyService
+     * @param showWindows whether to print the totals of the last minute, hour and day next to the balances
+     */
+    public ReportRenderer(MoneyService moneyService, boolean showWindows) {
+        if (moneyService == null)
+            throw new IllegalArgumentException("Money service cannot be null");
+
+        this.moneyService = moneyService;
+        this.showWindows = showWindows;
+    }
+
+    /**
+     * Writes the report of all the balances to the output and flushes it.
+     *
+     * @param output
+     * @throws IOException
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        ConvertedView view = moneyService.getReportView();
+        ExchangeRateMatrix rates = moneyService.getExchangeRates();
+        BalanceSnapshot snapshot = moneyService.getSnapshot();
+        if (!showWindows && snapshot.getSequence() == renderedSequence && view == renderedView
+                && rates == renderedRates) {
+            write(output, renderedLength);
+            return;
+        }
+
+        int length = 0;
+        for (int i = 0; i < Currencies.count(); i++) {
+            String balanceLine = view.getLine(snapshot, i);
+            if (balanceLine == null)
+                continue;
+
+            length = append(balanceLine, length);
+            if (showWindows) {
+                line.setLength(0);
+                appendWindows(i);
+                length = append(line, length);
+            }
+            length = append("\n", length);
+        }
+        if (length > 0) {
+            line.setLength(0);
+            MoneyFormat.append(line.append("Total "), view.getGrandTotal(snapshot));
+            if (view.getUnconvertedCount(snapshot) > 0)
+                line.append(" (").append(view.getUnconvertedCount(snapshot))
+                        .append(" currencies without exchange rate)");
+            length = append(line.append('\n'), length);
+        }
+
+        //The rates are read before the lines, so a rate change in between renders the report again next time
+        renderedLength = length;
+        renderedSequence = snapshot.getSequence();
+        renderedView = view;
+        renderedRates = rates;
+        write(output, length);
+    }
+
+    private void write(OutputStream output, int length) throws IOException {
+        if (length == 0)
+            return;
+
+        output.write(buffer, 0, length);
+        output.flush();
+    }
+
+    /**
+     * Appends e.g. " | 1m: 5 in 2, 1h: 20 in 7, 24h: 120 in 31"
+     */
+    private void appendWindows(int currencyIndex) {
+        String separator = " | ";
+        for (TimeWindow window : TimeWindow.values()) {
+            WindowTotal total = moneyService.getWindowTotal(Currencies.currency(currencyIndex), window);
+            if (total == null)
+                continue;
+
+            line.append(separator).append(window.getLabel()).append(": ");
+            MoneyFormat.appendValue(line, total.getAmount().getValue()).append(" in ").append(total.getCount());
+            separator = ", ";
+        }
+    }
+
+    /**
+     * The report is plain ASCII (currency codes and digits), so the chars are copied without an encoder.
+     */
+    private int append(CharSequence text, int length) {
+        if (length + text.length() > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + text.length()));
+
+        for (int i = 0; i < text.length(); i++)
+            buffer[length++] = (byte) text.charAt(i);
+
+        return length;
+    }
+}
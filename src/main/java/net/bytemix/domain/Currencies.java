@@ -0,0 +1,83 @@
+package net.bytemix.domain;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Currency;
+
+/**
+ * Precomputed table of all the currencies known to the JVM.
+ *
+ * Every currency gets a stable (for the running JVM) index, so hot paths can work with a plain int instead of
+ * Currency objects and hash lookups. The index is not stable across JVM versions, so it must never be persisted;
+ * persist the currency code instead.
+ */
+public final class Currencies {
+    private static final int LETTERS = 'Z' - 'A' + 1;
+    private static final Currency[] CURRENCIES;
+    private static final int[] SCALES;
+    private static final short[] INDEX_BY_CODE = new short[LETTERS * LETTERS * LETTERS];
+
+    static {
+        CURRENCIES = Currency.getAvailableCurrencies().toArray(new Currency[0]);
+        Arrays.sort(CURRENCIES, Comparator.comparing(Currency::getCurrencyCode));
+
+        SCALES = new int[CURRENCIES.length];
+        Arrays.fill(INDEX_BY_CODE, (short) -1);
+        for (int i = 0; i < CURRENCIES.length; i++) {
+            String code = CURRENCIES[i].getCurrencyCode();
+            SCALES[i] = Math.max(CURRENCIES[i].getDefaultFractionDigits(), 0);
+            INDEX_BY_CODE[codeSlot(code.charAt(0), code.charAt(1), code.charAt(2))] = (short) i;
+        }
+    }
+
+    private Currencies() {
+    }
+
+    /**
+     * @return number of known currencies, all indexes are in the range [0, count)
+     */
+    public static int count() {
+        return CURRENCIES.length;
+    }
+
+    public static int indexOf(Currency currency) {
+        if (currency == null)
+            throw new IllegalArgumentException("Currency cannot be null");
+
+        String code = currency.getCurrencyCode();
+        return indexOf(code.charAt(0), code.charAt(1), code.charAt(2));
+    }
+
+    /**
+     * @param c1
+     * @param c2
+     * @param c3
+     * @return index of the currency with the given 3-letter code or -1 if there is no such currency
+     */
+    public static int indexOf(char c1, char c2, char c3) {
+        int slot = codeSlot(c1, c2, c3);
+        return slot < 0 ? -1 : INDEX_BY_CODE[slot];
+    }
+
+    public static Currency currency(int index) {
+        return CURRENCIES[index];
+    }
+
+    /**
+     * @param index
+     * @return number of fraction digits the currency uses (never negative)
+     */
+    public static int scale(int index) {
+        return SCALES[index];
+    }
+
+    private static int codeSlot(char c1, char c2, char c3) {
+        int l1 = c1 - 'A';
+        int l2 = c2 - 'A';
+        int l3 = c3 - 'A';
+        if ((l1 | l2 | l3) < 0 || l1 >= LETTERS || l2 >= LETTERS || l3 >= LETTERS)
+            return -1;
+
+        return (l1 * LETTERS + l2) * LETTERS + l3;
+    }
+}
@@ -0,0 +1,146 @@
+package net.bytemix.domain;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Currency;
+
+/**
+ * Immutable money amount stored as a long count of minor units (e.g. cents) plus an index into {@link Currencies}.
+ * The number of minor units per major unit is given by the currency's default fraction digits.
+ *
+ * This is the cheap counterpart of MoneyAmount: it holds no BigDecimal, so arithmetic on it doesn't allocate
+ * anything besides the result. Amounts that don't fit into a long (or that have more fraction digits than the
+ * currency uses) can't be represented and have to stay MoneyAmount.
+ */
+public final class FixedPointMoney {
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final long minorUnits;
+    private final int currencyIndex;
+
+    public FixedPointMoney(long minorUnits, int currencyIndex) {
+        if (currencyIndex < 0 || currencyIndex >= Currencies.count())
+            throw new IllegalArgumentException("Unknown currency index " + currencyIndex);
+
+        this.minorUnits = minorUnits;
+        this.currencyIndex = currencyIndex;
+    }
+
+    public FixedPointMoney(long minorUnits, Currency currency) {
+        this(minorUnits, Currencies.indexOf(currency));
+    }
+
+    /**
+     * @param money
+     * @return null if the amount can't be represented exactly in minor units that fit into a long
+     */
+    public static FixedPointMoney fromMoneyAmount(MoneyAmount money) {
+        if (money == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        int currencyIndex = Currencies.indexOf(money.getCurrency());
+        BigDecimal value = money.getValue();
+        if (value.scale() > Currencies.scale(currencyIndex)) {
+            try {
+                value = value.setScale(Currencies.scale(currencyIndex));
+            } catch (ArithmeticException e) {
+                return null;
+            }
+        }
+
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() >= Long.SIZE)
+            return null;
+
+        try {
+            return new FixedPointMoney(rescale(unscaled.longValue(), value.scale(), Currencies.scale(currencyIndex)),
+                    currencyIndex);
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Converts an unscaled value from one scale to a bigger one, e.g. 125 with scale 1 (12.5) to 1250 with scale 2.
+     *
+     * @param unscaledValue
+     * @param fromScale
+     * @param toScale must not be smaller than fromScale
+     * @return unscaledValue * 10^(toScale - fromScale)
+     * @throws ArithmeticException if the result doesn't fit into a long
+     */
+    public static long rescale(long unscaledValue, int fromScale, int toScale) {
+        int difference = toScale - fromScale;
+        if (difference < 0)
+            throw new IllegalArgumentException("Rescaling to a smaller scale loses precision");
+        if (difference >= POWERS_OF_TEN.length) {
+            if (unscaledValue == 0)
+                return 0;
+            throw new ArithmeticException("long overflow");
+        }
+
+        return Math.multiplyExact(unscaledValue, POWERS_OF_TEN[difference]);
+    }
+
+    /**
+     * @param money
+     * @return sum of the two amounts
+     * @throws ArithmeticException if the sum doesn't fit into a long
+     */
+    public FixedPointMoney add(FixedPointMoney money) {
+        if (money == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        if (money.currencyIndex != this.currencyIndex)
+            throw new IllegalArgumentException("You can add only the same currency to the same currency");
+
+        return new FixedPointMoney(Math.addExact(minorUnits, money.minorUnits), currencyIndex);
+    }
+
+    public MoneyAmount toMoneyAmount() {
+        return new MoneyAmount(BigDecimal.valueOf(minorUnits, getScale()), getCurrency());
+    }
+
+    public long getMinorUnits() {
+        return minorUnits;
+    }
+
+    public int getCurrencyIndex() {
+        return currencyIndex;
+    }
+
+    public Currency getCurrency() {
+        return Currencies.currency(currencyIndex);
+    }
+
+    public int getScale() {
+        return Currencies.scale(currencyIndex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof FixedPointMoney))
+            return false;
+
+        FixedPointMoney that = (FixedPointMoney) o;
+        return minorUnits == that.minorUnits && currencyIndex == that.currencyIndex;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(minorUnits) + currencyIndex;
+    }
+
+    @Override
+    public String toString() {
+        return getCurrency().getCurrencyCode() + " " + BigDecimal.valueOf(minorUnits, getScale()).toPlainString();
+    }
+}
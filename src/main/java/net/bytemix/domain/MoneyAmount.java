@@ -30,24 +30,18 @@ public class MoneyAmount {
      * @throws MoneyParseException
      */
     public MoneyAmount(String moneyAmountString) throws MoneyParseException {
-        if (moneyAmountString == null || moneyAmountString.isEmpty())
-            throw new MoneyParseException("Money amount string cannot be empty");
+        MoneyParser parser = new MoneyParser();
+        ParseStatus status = parser.parse(moneyAmountString);
 
-        String[] lineSplit = moneyAmountString.split(" ");
-
-        if (lineSplit.length != 2)
-            throw new MoneyParseException("The expected format is 2 Strings separated by a space. Actual: " + moneyAmountString);
-
-        try {
-            currency = Currency.getInstance(lineSplit[0]);
-        } catch (Exception e) {
-            throw new MoneyParseException("Error when parsing currency " + lineSplit[0], e);
-        }
-        try {
-            value = new BigDecimal(lineSplit[1]);
-        } catch (Exception e) {
-            throw new MoneyParseException("Error when parsing value of the money amount: "+ lineSplit[1], e);
+        if (!status.isValid()) {
+            //Bad input is expected, there is no point in filling in the stack trace
+            throw new MoneyParseException(status.getDescription() + ". Actual: " + moneyAmountString, null,
+                    false, false);
         }
+
+        MoneyAmount parsed = parser.toMoneyAmount();
+        value = parsed.value;
+        currency = parsed.currency;
     }
 
     public MoneyAmount(BigDecimal value, Currency currency) {
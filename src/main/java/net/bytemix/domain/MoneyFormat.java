@@ -0,0 +1,59 @@
+package net.bytemix.domain;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Formats money amounts as "CODE VALUE" with at most 2 fraction digits, e.g. "USD 20" or "CZK 151.25".
+ *
+ * The output is the same as of DecimalFormat("0.##") (including "-0" for small negative values), but the digits are
+ * appended straight into a StringBuilder, so it is thread-safe and doesn't create intermediate Strings.
+ */
+public final class MoneyFormat {
+    private static final int FRACTION_DIGITS = 2;
+
+    private MoneyFormat() {
+    }
+
+    public static String format(MoneyAmount moneyAmount) {
+        return append(new StringBuilder(24), moneyAmount).toString();
+    }
+
+    public static StringBuilder append(StringBuilder target, MoneyAmount moneyAmount) {
+        target.append(moneyAmount.getCurrency().getCurrencyCode()).append(' ');
+        return appendValue(target, moneyAmount.getValue());
+    }
+
+    public static StringBuilder appendValue(StringBuilder target, BigDecimal value) {
+        BigDecimal rounded = value.scale() == FRACTION_DIGITS ? value
+                : value.setScale(FRACTION_DIGITS, RoundingMode.HALF_EVEN);
+        if (value.signum() < 0)
+            target.append('-');
+
+        //Up to 18 digits the unscaled value fits into a long
+        if (rounded.precision() <= 18) {
+            long unscaled = Math.abs(rounded.unscaledValue().longValue());
+            target.append(unscaled / 100);
+            appendFraction(target, (int) (unscaled % 100));
+        } else {
+            String digits = rounded.abs().toPlainString();
+            int point = digits.indexOf('.');
+            target.append(digits, 0, point);
+            appendFraction(target, Integer.parseInt(digits.substring(point + 1)));
+        }
+        return target;
+    }
+
+    private static void appendFraction(StringBuilder target, int hundredths) {
+        if (hundredths == 0)
+            return;
+
+        target.append('.');
+        if (hundredths < 10)
+            target.append('0').append(hundredths);
+        else if (hundredths % 10 == 0)
+            target.append(hundredths / 10);
+        else
+            target.append(hundredths);
+    }
+}
@@ -0,0 +1,237 @@
+package net.bytemix.domain;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+/**
+ * Parser of money amounts in the "CURRENCY_CODE DECIMAL_VALUE" format, e.g. "USD -20.5".
+ *
+ * It accepts the same input as the MoneyAmount(String) constructor, but it works directly on a CharSequence or
+ * on a slice of a ByteBuffer and reports bad input by a ParseStatus instead of an exception. The currency is looked
+ * up in the Currencies table and the value is parsed straight into an unscaled long, so parsing doesn't allocate.
+ *
+ * The parser keeps the result of the last parse, so an instance must not be shared by multiple threads.
+ */
+public final class MoneyParser {
+    private static final int MAX_EXPONENT = Integer.MAX_VALUE / 2;
+
+    private final ByteSequence bytes = new ByteSequence();
+    private ParseStatus status = ParseStatus.EMPTY;
+    private CharSequence input;
+    private int numberStart;
+    private int numberEnd;
+    private int currencyIndex = -1;
+    private long unscaledValue;
+    private int scale;
+
+    public ParseStatus parse(CharSequence moneyAmountString) {
+        if (moneyAmountString == null)
+            return finish(ParseStatus.EMPTY);
+
+        return parse(moneyAmountString, 0, moneyAmountString.length());
+    }
+
+    /**
+     * Parses the bytes between start (inclusive) and end (exclusive) of the buffer, without changing its position.
+     *
+     * @param buffer
+     * @param start
+     * @param end
+     * @return
+     */
+    public ParseStatus parse(ByteBuffer buffer, int start, int end) {
+        bytes.wrap(buffer, start, end - start);
+        return parse(bytes, 0, end - start);
+    }
+
+    public ParseStatus parse(CharSequence input, int start, int end) {
+        this.input = input;
+        currencyIndex = -1;
+        unscaledValue = 0;
+        scale = 0;
+
+        if (start >= end)
+            return finish(ParseStatus.EMPTY);
+
+        //Trailing spaces are ignored, the same way String.split ignores trailing empty strings
+        while (end > start && input.charAt(end - 1) == ' ')
+            end--;
+
+        int separator = start;
+        while (separator < end && input.charAt(separator) != ' ')
+            separator++;
+        if (separator >= end)
+            return finish(ParseStatus.BAD_FORMAT);
+
+        ParseStatus numberStatus = parseNumber(input, separator + 1, end);
+        if (numberStatus == ParseStatus.BAD_FORMAT)
+            return finish(numberStatus);
+
+        if (separator - start != 3)
+            return finish(ParseStatus.UNKNOWN_CURRENCY);
+        currencyIndex = Currencies.indexOf(input.charAt(start), input.charAt(start + 1), input.charAt(start + 2));
+        if (currencyIndex < 0)
+            return finish(ParseStatus.UNKNOWN_CURRENCY);
+
+        return finish(numberStatus);
+    }
+
+    /**
+     * @return index of the parsed currency in Currencies
+     */
+    public int getCurrencyIndex() {
+        return currencyIndex;
+    }
+
+    /**
+     * @return the parsed value is getUnscaledValue() * 10^-getScale(). Only valid if the last status was OK.
+     */
+    public long getUnscaledValue() {
+        return unscaledValue;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public ParseStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Creates MoneyAmount from the last parsed input. When the status was OUT_OF_RANGE, this reads the input again,
+     * so the input must not be changed in between.
+     *
+     * @return
+     */
+    public MoneyAmount toMoneyAmount() {
+        if (status == ParseStatus.OK)
+            return new MoneyAmount(BigDecimal.valueOf(unscaledValue, scale), Currencies.currency(currencyIndex));
+        if (status != ParseStatus.OUT_OF_RANGE)
+            throw new IllegalStateException("The last parsed input wasn't a money amount: " + status);
+
+        char[] number = new char[numberEnd - numberStart];
+        for (int i = 0; i < number.length; i++)
+            number[i] = input.charAt(numberStart + i);
+
+        return new MoneyAmount(new BigDecimal(number), Currencies.currency(currencyIndex));
+    }
+
+    private ParseStatus parseNumber(CharSequence input, int start, int end) {
+        numberStart = start;
+        numberEnd = end;
+
+        int i = start;
+        boolean negative = false;
+        char c = input.charAt(i);
+        if (c == '+' || c == '-') {
+            negative = c == '-';
+            i++;
+        }
+
+        long value = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        boolean overflow = false;
+        for (; i < end; i++) {
+            c = input.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int digit = c - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10)
+                    overflow = true;
+                else
+                    value = value * 10 + digit;
+                digits++;
+                if (fraction)
+                    fractionDigits++;
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0)
+            return invalidNumber(input, i, end);
+
+        long exponent = 0;
+        if (i < end && (c == 'e' || c == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (input.charAt(i) == '+' || input.charAt(i) == '-')) {
+                negativeExponent = input.charAt(i) == '-';
+                i++;
+            }
+            int exponentStart = i;
+            for (; i < end && input.charAt(i) >= '0' && input.charAt(i) <= '9'; i++) {
+                exponent = exponent * 10 + (input.charAt(i) - '0');
+                if (exponent > MAX_EXPONENT)
+                    return invalidNumber(input, i, end);
+            }
+            if (i == exponentStart)
+                return invalidNumber(input, i, end);
+            if (negativeExponent)
+                exponent = -exponent;
+        }
+        if (i < end)
+            return invalidNumber(input, i, end);
+
+        unscaledValue = negative ? -value : value;
+        scale = (int) (fractionDigits - exponent);
+        return overflow ? ParseStatus.OUT_OF_RANGE : ParseStatus.OK;
+    }
+
+    /**
+     * A space in the value means that there are more than 2 Strings separated by a space.
+     */
+    private ParseStatus invalidNumber(CharSequence input, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (input.charAt(i) == ' ')
+                return ParseStatus.BAD_FORMAT;
+        }
+        return ParseStatus.BAD_NUMBER;
+    }
+
+    private ParseStatus finish(ParseStatus status) {
+        this.status = status;
+        return status;
+    }
+
+    /**
+     * Reusable view of ASCII bytes in a ByteBuffer as a CharSequence.
+     */
+    private static final class ByteSequence implements CharSequence {
+        private ByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        void wrap(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(offset + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++)
+                chars[i] = charAt(i);
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package net.bytemix.domain;
+
+/**
+ * Result of parsing a money amount with MoneyParser.
+ */
+public enum ParseStatus {
+    OK("Parsed"),
+    /**
+     * The input is a valid money amount, but the value doesn't fit into a long. It has to be parsed as BigDecimal.
+     */
+    OUT_OF_RANGE("Value doesn't fit into a long"),
+    EMPTY("Money amount string cannot be empty"),
+    BAD_FORMAT("The expected format is 2 Strings separated by a space"),
+    UNKNOWN_CURRENCY("Unknown currency code"),
+    BAD_NUMBER("Value of the money amount is not a decimal number");
+
+    private final String description;
+
+    ParseStatus(String description) {
+        this.description = description;
+    }
+
+    /**
+     * @return true if the input was a valid money amount
+     */
+    public boolean isValid() {
+        return this == OK || this == OUT_OF_RANGE;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,103 @@
+package net.bytemix.domain;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * How many fraction digits the amounts of a MoneyService keep and how they are rounded. Immutable.
+ *
+ * The scale of every currency is its default number of fraction digits (see Currencies.scale). Exchanged amounts
+ * keep at most exchangeExtraDigits more than that, the inverse exchange rates computed for one-way rates have
+ * inverseRateScale fraction digits. Balances are exact by default: payments with more fraction digits than their
+ * currency uses are added to a BigDecimal remainder. With normalized accumulation they are rounded to the currency
+ * scale instead, so every balance stays a plain long of minor units.
+ */
+public final class PrecisionPolicy {
+    /**
+     * Exact balances, exchanged amounts with up to 3 digits more than the target currency uses, 5-digit inverse
+     * rates, half-up rounding
+     */
+    public static final PrecisionPolicy DEFAULT = new PrecisionPolicy(RoundingMode.HALF_UP, 3, 5, false);
+
+    private final RoundingMode rounding;
+    private final int exchangeExtraDigits;
+    private final int inverseRateScale;
+    private final boolean normalizedAccumulation;
+
+    /**
+     * @param rounding used for exchanged amounts, inverse rates and normalized payments
+     * @param exchangeExtraDigits how many more fraction digits than the target currency uses an exchanged amount
+     *                            may have
+     * @param inverseRateScale number of fraction digits of the computed inverse rates
+     * @param normalizedAccumulation whether payments are rounded to the scale of their currency when they are added
+     *                               to the balances
+     */
+    public PrecisionPolicy(RoundingMode rounding, int exchangeExtraDigits, int inverseRateScale,
+                           boolean normalizedAccumulation) {
+        if (rounding == null || rounding == RoundingMode.UNNECESSARY)
+            throw new IllegalArgumentException("Rounding mode must be specified and must allow rounding");
+        if (exchangeExtraDigits < 0 || inverseRateScale < 0)
+            throw new IllegalArgumentException("Numbers of digits cannot be negative");
+
+        this.rounding = rounding;
+        this.exchangeExtraDigits = exchangeExtraDigits;
+        this.inverseRateScale = inverseRateScale;
+        this.normalizedAccumulation = normalizedAccumulation;
+    }
+
+    /**
+     * @param value exchanged value
+     * @param currencyIndex Currencies index of the target currency
+     * @return the value rounded to the exchange scale of the currency, the same instance if it doesn't have more
+     * digits
+     */
+    public BigDecimal roundExchanged(BigDecimal value, int currencyIndex) {
+        int maxScale = Currencies.scale(currencyIndex) + exchangeExtraDigits;
+        return value.scale() > maxScale ? value.setScale(maxScale, rounding) : value;
+    }
+
+    /**
+     * @param rate rate computed from other rates, e.g. through a pivot currency
+     * @return the rate rounded to inverseRateScale fraction digits like the inverse rates, the same instance if it
+     * doesn't have more digits
+     */
+    public BigDecimal roundDerivedRate(BigDecimal rate) {
+        return rate.scale() > inverseRateScale ? rate.setScale(inverseRateScale, rounding) : rate;
+    }
+
+    /**
+     * @param rate
+     * @return 1 / rate with inverseRateScale fraction digits
+     */
+    public BigDecimal inverseRate(BigDecimal rate) {
+        return BigDecimal.ONE.divide(rate, inverseRateScale, rounding);
+    }
+
+    /**
+     * Rounds unscaledValue * 10^-valueScale to the given smaller scale.
+     *
+     * @param unscaledValue
+     * @param valueScale
+     * @param scale
+     * @return unscaled value with the given scale
+     */
+    public long normalize(long unscaledValue, int valueScale, int scale) {
+        return BigDecimal.valueOf(unscaledValue, valueScale).setScale(scale, rounding).unscaledValue().longValue();
+    }
+
+    public RoundingMode getRounding() {
+        return rounding;
+    }
+
+    public int getExchangeExtraDigits() {
+        return exchangeExtraDigits;
+    }
+
+    public int getInverseRateScale() {
+        return inverseRateScale;
+    }
+
+    public boolean isNormalizedAccumulation() {
+        return normalizedAccumulation;
+    }
+}
@@ -0,0 +1,186 @@
+package net.bytemix.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one tracker.
+ *
+ * The counters are always updated, they are LongAdders so concurrent writers don't contend. Latencies cost two
+ * System.nanoTime calls per measured operation and are only recorded when enabled. All the recording is lock-free
+ * and allocation-free.
+ */
+public class TrackerMetrics implements TrackerMetricsMBean {
+    private final LongAdder payments = new LongAdder();
+    private final LongAdder parseFailures = new LongAdder();
+    private final LatencyHistogram registerLatency = new LatencyHistogram();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private final LatencyHistogram exchangeLatency = new LatencyHistogram();
+    private final LatencyHistogram printLatency = new LatencyHistogram();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean latencyEnabled;
+
+    public void paymentsRegistered(long count) {
+        payments.add(count);
+    }
+
+    public void parseFailed(long count) {
+        parseFailures.add(count);
+    }
+
+    /**
+     * @return current System.nanoTime if latencies are recorded, 0 otherwise. Pass the result to the record method.
+     */
+    public long start() {
+        return latencyEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records latency of registering a single payment.
+     *
+     * @param start value returned by start()
+     */
+    public void recordRegister(long start) {
+        record(registerLatency, start);
+    }
+
+    /**
+     * Records latency of registering a batch of payments.
+     *
+     * @param start value returned by start()
+     */
+    public void recordBatch(long start) {
+        record(batchLatency, start);
+    }
+
+    public void recordExchange(long start) {
+        record(exchangeLatency, start);
+    }
+
+    public void recordPrint(long start) {
+        record(printLatency, start);
+    }
+
+    private void record(LatencyHistogram histogram, long start) {
+        if (start != 0)
+            histogram.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server as net.bytemix:type=TrackerMetrics,name=NAME.
+     *
+     * @param name
+     * @throws JMException
+     */
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("net.bytemix:type=TrackerMetrics,name=" + ObjectName.quote(name)));
+    }
+
+    @Override
+    public long getPaymentCount() {
+        return payments.sum();
+    }
+
+    @Override
+    public long getParseFailureCount() {
+        return parseFailures.sum();
+    }
+
+    /**
+     * @return average since the metrics were created
+     */
+    @Override
+    public double getPaymentsPerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds <= 0 ? 0 : payments.sum() / seconds;
+    }
+
+    @Override
+    public boolean isLatencyEnabled() {
+        return latencyEnabled;
+    }
+
+    @Override
+    public void setLatencyEnabled(boolean latencyEnabled) {
+        this.latencyEnabled = latencyEnabled;
+    }
+
+    public LatencyHistogram getRegisterLatency() {
+        return registerLatency;
+    }
+
+    public LatencyHistogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    public LatencyHistogram getExchangeLatency() {
+        return exchangeLatency;
+    }
+
+    public LatencyHistogram getPrintLatency() {
+        return printLatency;
+    }
+
+    @Override
+    public long getRegisterLatencyP50() {
+        return registerLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getRegisterLatencyP99() {
+        return registerLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getRegisterLatencyMax() {
+        return registerLatency.getMax();
+    }
+
+    @Override
+    public long getBatchLatencyP50() {
+        return batchLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getBatchLatencyP99() {
+        return batchLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getBatchLatencyMax() {
+        return batchLatency.getMax();
+    }
+
+    @Override
+    public long getExchangeLatencyP50() {
+        return exchangeLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getExchangeLatencyP99() {
+        return exchangeLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getExchangeLatencyMax() {
+        return exchangeLatency.getMax();
+    }
+
+    @Override
+    public long getPrintLatencyP50() {
+        return printLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getPrintLatencyP99() {
+        return printLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getPrintLatencyMax() {
+        return printLatency.getMax();
+    }
+}
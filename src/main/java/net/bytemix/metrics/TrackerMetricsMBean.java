@@ -0,0 +1,40 @@
+package net.bytemix.metrics;
+
+/**
+ * JMX view of TrackerMetrics. Latencies are in nanoseconds.
+ */
+public interface TrackerMetricsMBean {
+    long getPaymentCount();
+
+    long getParseFailureCount();
+
+    double getPaymentsPerSecond();
+
+    boolean isLatencyEnabled();
+
+    void setLatencyEnabled(boolean latencyEnabled);
+
+    long getRegisterLatencyP50();
+
+    long getRegisterLatencyP99();
+
+    long getRegisterLatencyMax();
+
+    long getBatchLatencyP50();
+
+    long getBatchLatencyP99();
+
+    long getBatchLatencyMax();
+
+    long getExchangeLatencyP50();
+
+    long getExchangeLatencyP99();
+
+    long getExchangeLatencyMax();
+
+    long getPrintLatencyP50();
+
+    long getPrintLatencyP99();
+
+    long getPrintLatencyMax();
+}
@@ -0,0 +1,81 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+
+/**
+ * Balances of all the currencies of a MoneyService at one moment, see MoneyService.getSnapshot. Immutable.
+ *
+ * Every update of the balances (a payment, a batch, a file) is either completely included in the snapshot or not at
+ * all, so the balances and the payment counts always match each other.
+ */
+public final class BalanceSnapshot {
+    private final long sequence;
+    private final MoneyAmount[] amounts;
+    private final long[] counts;
+    private final long paymentCount;
+    private final List<MoneyAmount> moneyAmounts;
+
+    BalanceSnapshot(long sequence, MoneyAmount[] amounts, long[] counts) {
+        this.sequence = sequence;
+        this.amounts = amounts;
+        this.counts = counts;
+
+        long paymentCount = 0;
+        List<MoneyAmount> moneyAmounts = new ArrayList<>();
+        for (int i = 0; i < amounts.length; i++) {
+            if (amounts[i] != null)
+                moneyAmounts.add(amounts[i]);
+            paymentCount += counts[i];
+        }
+        this.paymentCount = paymentCount;
+        this.moneyAmounts = Collections.unmodifiableList(moneyAmounts);
+    }
+
+    /**
+     * @return number of updates of the balances included in the snapshot. A newer snapshot has a bigger sequence
+     * if and only if the balances changed.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return number of payments included in the snapshot
+     */
+    public long getPaymentCount() {
+        return paymentCount;
+    }
+
+    /**
+     * @param currencyIndex
+     * @return number of payments in the currency with the given Currencies index
+     */
+    public long getPaymentCount(int currencyIndex) {
+        return counts[currencyIndex];
+    }
+
+    /**
+     * @param currencyIndex
+     * @return balance in the currency with the given Currencies index, null if it had no payment
+     */
+    public MoneyAmount getAmount(int currencyIndex) {
+        return amounts[currencyIndex];
+    }
+
+    public MoneyAmount getAmount(Currency currency) {
+        return getAmount(Currencies.indexOf(currency));
+    }
+
+    /**
+     * @return all the balances ordered by Currencies index, the list can't be modified
+     */
+    public List<MoneyAmount> getMoneyAmounts() {
+        return moneyAmounts;
+    }
+}
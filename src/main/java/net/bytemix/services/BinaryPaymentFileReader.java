@@ -0,0 +1,207 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.stream.IntStream;
+
+/**
+ * Reads binary payment files (see BinaryPaymentFormat) in parallel.
+ *
+ * Every block is memory-mapped, checked against its CRC32 and summed up by a worker of the common fork/join pool
+ * straight from the mapped columns into per-currency longs, so there is no parsing and no allocation per record.
+ * The big values after the blocks are added at the end.
+ */
+public class BinaryPaymentFileReader {
+
+    /**
+     * @param file
+     * @return true if the file starts with the magic number of the binary payment files
+     */
+    public static boolean isBinary(Path file) {
+        if (file == null)
+            throw new IllegalArgumentException("File cannot be null");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.size() >= Integer.BYTES
+                    && read(channel, 0, Integer.BYTES).getInt() == BinaryPaymentFormat.MAGIC;
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read file", e);
+        }
+    }
+
+    /**
+     * @param file
+     * @return sums of all the payments in the file
+     */
+    public PaymentTotals aggregate(Path file) {
+        if (file == null)
+            throw new IllegalArgumentException("File cannot be null");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            long blockCount = (header.recordCount + header.blockRecords - 1) / header.blockRecords;
+            long expectedSize = header.size + (blockCount == 0 ? 0
+                    : (blockCount - 1) * BinaryPaymentFormat.blockSize(header.blockRecords)
+                    + BinaryPaymentFormat.blockSize(lastBlockRecords(header, blockCount)));
+            long bigValuesSize = header.version < 2 ? 0 : channel.size() - expectedSize;
+            if (channel.size() < expectedSize || (header.version >= 2 && bigValuesSize < 2 * Integer.BYTES))
+                throw new IOException("File is truncated, expected " + expectedSize + " bytes and the big values");
+            if (blockCount > Integer.MAX_VALUE || bigValuesSize > Integer.MAX_VALUE)
+                throw new IOException("File has too many blocks or big values");
+
+            PaymentTotals totals = IntStream.range(0, (int) blockCount)
+                    .parallel()
+                    .collect(PaymentTotals::new,
+                            (blockTotals, block) -> aggregateBlock(channel, header, block, blockCount, blockTotals),
+                            PaymentTotals::merge);
+            if (bigValuesSize > 0)
+                addBigValues(read(channel, expectedSize, (int) bigValuesSize), header, totals);
+            return totals;
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read file", e);
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException("Couldn't read file", e.getCause());
+        }
+    }
+
+    private void aggregateBlock(FileChannel channel, Header header, int block, long blockCount,
+                                PaymentTotals totals) {
+        int records = block == blockCount - 1 ? lastBlockRecords(header, blockCount) : header.blockRecords;
+        long blockSize = BinaryPaymentFormat.blockSize(records);
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.size + block * BinaryPaymentFormat.blockSize(header.blockRecords), blockSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        CRC32 crc = new CRC32();
+        buffer.limit((int) blockSize - Integer.BYTES);
+        crc.update(buffer);
+        buffer.limit((int) blockSize);
+        if (buffer.getInt(0) != records || buffer.getInt((int) blockSize - Integer.BYTES) != (int) crc.getValue())
+            throw new UncheckedIOException(new IOException("Block " + block + " is corrupted"));
+
+        int currencyCount = header.currencyIndexes.length;
+        long[] sums = new long[currencyCount];
+        long[] counts = new long[currencyCount];
+        int currencies = Integer.BYTES;
+        int amounts = currencies + records * Short.BYTES;
+        for (int i = 0; i < records; i++) {
+            int position = buffer.getShort(currencies + i * Short.BYTES);
+            if (position < 0 || position >= currencyCount)
+                throw new UncheckedIOException(new IOException("Block " + block + " has unknown currency"));
+
+            long amount = buffer.getLong(amounts + i * Long.BYTES);
+            long sum = sums[position] + amount;
+            //On overflow the sum so far is moved to the totals
+            if (((sums[position] ^ sum) & (amount ^ sum)) < 0) {
+                totals.addTotal(header.currencyIndexes[position], sums[position], counts[position],
+                        header.scales[position]);
+                counts[position] = 0;
+                sum = amount;
+            }
+            sums[position] = sum;
+            counts[position]++;
+        }
+
+        for (int i = 0; i < currencyCount; i++) {
+            if (counts[i] > 0)
+                totals.addTotal(header.currencyIndexes[i], sums[i], counts[i], header.scales[i]);
+        }
+    }
+
+    private static void addBigValues(ByteBuffer section, Header header, PaymentTotals totals) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(section.array(), 0, section.limit() - Integer.BYTES);
+        if (section.getInt(section.limit() - Integer.BYTES) != (int) crc.getValue())
+            throw new IOException("Big values are corrupted");
+
+        section.limit(section.limit() - Integer.BYTES);
+        int count = section.getInt();
+        try {
+            for (int i = 0; i < count; i++) {
+                int position = section.getShort();
+                int scale = section.getInt();
+                byte[] unscaled = new byte[section.getInt()];
+                section.get(unscaled);
+                if (position < 0 || position >= header.currencyIndexes.length)
+                    throw new IOException("Big value has unknown currency");
+
+                totals.add(new MoneyAmount(new BigDecimal(new BigInteger(unscaled), scale),
+                        Currencies.currency(header.currencyIndexes[position])));
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException | NumberFormatException e) {
+            throw new IOException("Big values are corrupted", e);
+        }
+    }
+
+    private static int lastBlockRecords(Header header, long blockCount) {
+        return (int) (header.recordCount - (blockCount - 1) * header.blockRecords);
+    }
+
+    private Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer fixed = read(channel, 0, BinaryPaymentFormat.FIXED_HEADER_SIZE);
+        if (fixed.getInt() != BinaryPaymentFormat.MAGIC)
+            throw new IOException("Not a binary payment file");
+        Header header = new Header();
+        header.version = fixed.getInt();
+        if (header.version < BinaryPaymentFormat.MIN_VERSION || header.version > BinaryPaymentFormat.VERSION)
+            throw new IOException("Unsupported version of the binary payment file");
+
+        header.recordCount = fixed.getLong();
+        header.blockRecords = fixed.getInt();
+        int currencyCount = fixed.getShort();
+        if (header.recordCount < 0 || header.blockRecords <= 0 || currencyCount < 0
+                || BinaryPaymentFormat.blockSize(header.blockRecords) > Integer.MAX_VALUE)
+            throw new IOException("Header of the binary payment file is corrupted");
+
+        header.size = BinaryPaymentFormat.headerSize(currencyCount);
+        header.currencyIndexes = new int[currencyCount];
+        header.scales = new int[currencyCount];
+        ByteBuffer entries = read(channel, BinaryPaymentFormat.FIXED_HEADER_SIZE,
+                currencyCount * BinaryPaymentFormat.CURRENCY_ENTRY_SIZE);
+        for (int i = 0; i < currencyCount; i++) {
+            char a = (char) entries.get();
+            char b = (char) entries.get();
+            char c = (char) entries.get();
+            header.currencyIndexes[i] = Currencies.indexOf(a, b, c);
+            header.scales[i] = entries.get();
+            if (header.currencyIndexes[i] < 0)
+                throw new IOException("Unknown currency " + a + b + c);
+        }
+        return header;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("File is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static final class Header {
+        private int version;
+        private long recordCount;
+        private int blockRecords;
+        private int size;
+        private int[] currencyIndexes;
+        private int[] scales;
+    }
+}
@@ -0,0 +1,290 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.FixedPointMoney;
+import net.bytemix.domain.MoneyParser;
+import net.bytemix.domain.ParseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes binary payment files, see BinaryPaymentFormat. The currencies and the scale of their amounts are fixed
+ * when the writer is created, convert finds them out with a first pass over a text file. Amounts that don't fit
+ * into a long at that scale are kept in memory and written as big values when the writer is closed, so no payment
+ * is lost. Not thread-safe.
+ */
+public class BinaryPaymentFileWriter implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(BinaryPaymentFileWriter.class);
+
+    private final FileChannel channel;
+    private final int blockRecords;
+    /**
+     * Position in the header by Currencies index, -1 for currencies that are not in the file
+     */
+    private final short[] positions = new short[Currencies.count()];
+    private final int[] scales;
+    private final ByteBuffer block;
+    private final CRC32 crc = new CRC32();
+    private final short[] currencyColumn;
+    private final long[] amountColumn;
+    private int size;
+    private long recordCount;
+    private final ByteArrayOutputStream bigValueBytes = new ByteArrayOutputStream();
+    private final DataOutputStream bigValues = new DataOutputStream(bigValueBytes);
+    private int bigValueCount;
+
+    /**
+     * @param file created or overwritten
+     * @param currencyIndexes Currencies indexes of all the currencies that will be written
+     * @param scales scale of the stored amounts of each of the currencies, at most 127
+     * @param blockRecords number of records per checksummed block
+     * @throws IOException
+     */
+    public BinaryPaymentFileWriter(Path file, int[] currencyIndexes, int[] scales, int blockRecords)
+            throws IOException {
+        if (file == null || currencyIndexes == null || scales == null)
+            throw new IllegalArgumentException("File, currencies and scales must be specified");
+        if (currencyIndexes.length != scales.length || currencyIndexes.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Every currency must have a scale");
+        if (blockRecords <= 0)
+            throw new IllegalArgumentException("Block size must be positive");
+
+        this.blockRecords = blockRecords;
+        this.scales = new int[Currencies.count()];
+        this.currencyColumn = new short[blockRecords];
+        this.amountColumn = new long[blockRecords];
+        this.block = ByteBuffer.allocate((int) Math.min(BinaryPaymentFormat.blockSize(blockRecords), 1 << 20));
+        Arrays.fill(positions, (short) -1);
+
+        ByteBuffer header = ByteBuffer.allocate(BinaryPaymentFormat.headerSize(currencyIndexes.length));
+        header.putInt(BinaryPaymentFormat.MAGIC)
+                .putInt(BinaryPaymentFormat.VERSION)
+                .putLong(0)
+                .putInt(blockRecords)
+                .putShort((short) currencyIndexes.length);
+        for (int i = 0; i < currencyIndexes.length; i++) {
+            if (scales[i] < 0 || scales[i] > Byte.MAX_VALUE)
+                throw new IllegalArgumentException("Scale must be between 0 and 127");
+
+            positions[currencyIndexes[i]] = (short) i;
+            this.scales[currencyIndexes[i]] = scales[i];
+            String code = Currencies.currency(currencyIndexes[i]).getCurrencyCode();
+            header.put(code.getBytes(StandardCharsets.US_ASCII)).put((byte) scales[i]);
+        }
+        header.flip();
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    /**
+     * Converts a text payment file (one "CURRENCY VALUE" per line) to a binary one. The first pass finds the
+     * currencies and the largest scale of each of them, the second one writes the records. Bad lines are skipped,
+     * amounts that don't fit into a long at the scale of their currency are written as big values.
+     *
+     * @param textFile
+     * @param binaryFile created or overwritten
+     * @return number of written payments
+     * @throws IOException
+     */
+    public static long convert(Path textFile, Path binaryFile) throws IOException {
+        PaymentTotals totals = new PaymentFileReader().aggregate(textFile);
+        int[] currencyIndexes = new int[Currencies.count()];
+        int[] scales = new int[Currencies.count()];
+        int currencyCount = 0;
+        for (int i = 0; i < Currencies.count(); i++) {
+            if (totals.getValueScale(i) == Integer.MIN_VALUE)
+                continue;
+
+            currencyIndexes[currencyCount] = i;
+            scales[currencyCount++] = Math.min(Math.max(totals.getValueScale(i), 0), Byte.MAX_VALUE);
+        }
+
+        try (BinaryPaymentFileWriter writer = new BinaryPaymentFileWriter(binaryFile,
+                Arrays.copyOf(currencyIndexes, currencyCount), Arrays.copyOf(scales, currencyCount),
+                BinaryPaymentFormat.DEFAULT_BLOCK_RECORDS);
+             BufferedReader reader = Files.newBufferedReader(textFile, StandardCharsets.UTF_8)) {
+            MoneyParser parser = new MoneyParser();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                //Bad lines were already counted by the first pass
+                ParseStatus status = parser.parse(line);
+                if (status == ParseStatus.OK)
+                    writer.add(parser.getCurrencyIndex(), parser.getUnscaledValue(), parser.getScale());
+                else if (status == ParseStatus.OUT_OF_RANGE)
+                    writer.add(parser.getCurrencyIndex(), parser.toMoneyAmount().getValue());
+            }
+
+            if (writer.getBigValueCount() > 0)
+                logger.info(writer.getBigValueCount() + " amounts of file " + textFile
+                        + " don't fit into a long and are written as big values");
+            return writer.getRecordCount() + writer.getBigValueCount();
+        }
+    }
+
+    /**
+     * Adds payment of unscaledValue * 10^-scale in the currency with the given Currencies index.
+     *
+     * @param currencyIndex
+     * @param unscaledValue
+     * @param scale
+     * @return false if the amount doesn't fit into a long at the scale of the currency and was added as a big value
+     * @throws IOException
+     */
+    public boolean add(int currencyIndex, long unscaledValue, int scale) throws IOException {
+        short position = position(currencyIndex);
+        int targetScale = scales[currencyIndex];
+        long amount = 0;
+        boolean fits = scale <= targetScale;
+        if (fits) {
+            try {
+                amount = FixedPointMoney.rescale(unscaledValue, scale, targetScale);
+            } catch (ArithmeticException e) {
+                fits = false;
+            }
+        }
+        if (!fits) {
+            addBigValue(position, BigDecimal.valueOf(unscaledValue, scale));
+            return false;
+        }
+
+        currencyColumn[size] = position;
+        amountColumn[size] = amount;
+        if (++size == blockRecords)
+            writeBlock();
+        return true;
+    }
+
+    /**
+     * Adds payment of any size, amounts that fit into a long at the scale of the currency are added like by
+     * add(int, long, int).
+     *
+     * @param currencyIndex
+     * @param value
+     * @throws IOException
+     */
+    public void add(int currencyIndex, BigDecimal value) throws IOException {
+        if (value == null)
+            throw new IllegalArgumentException("Value cannot be null");
+
+        BigDecimal atScale = value.scale() <= scales[currencyIndex] ? value.setScale(scales[currencyIndex]) : null;
+        if (atScale != null && atScale.unscaledValue().bitLength() < Long.SIZE)
+            add(currencyIndex, atScale.unscaledValue().longValue(), atScale.scale());
+        else
+            addBigValue(position(currencyIndex), value);
+    }
+
+    private short position(int currencyIndex) {
+        short position = positions[currencyIndex];
+        if (position < 0)
+            throw new IllegalArgumentException("Currency " + Currencies.currency(currencyIndex) + " is not in the file");
+        return position;
+    }
+
+    private void addBigValue(short position, BigDecimal value) throws IOException {
+        byte[] unscaled = value.unscaledValue().toByteArray();
+        bigValues.writeShort(position);
+        bigValues.writeInt(value.scale());
+        bigValues.writeInt(unscaled.length);
+        bigValues.write(unscaled);
+        bigValueCount++;
+    }
+
+    /**
+     * @return number of records written into the blocks, without the big values
+     */
+    public long getRecordCount() {
+        return recordCount + size;
+    }
+
+    /**
+     * @return number of amounts that didn't fit into a long at the scale of their currency
+     */
+    public int getBigValueCount() {
+        return bigValueCount;
+    }
+
+    /**
+     * Writes the last block and the record count.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (size > 0)
+                writeBlock();
+            writeBigValues();
+
+            ByteBuffer count = ByteBuffer.allocate(Long.BYTES).putLong(0, recordCount);
+            while (count.hasRemaining())
+                channel.write(count, BinaryPaymentFormat.RECORD_COUNT_OFFSET + count.position());
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        crc.reset();
+        block.clear();
+        block.putInt(size);
+        for (int i = 0; i < size; i++) {
+            if (block.remaining() < Short.BYTES)
+                flush();
+            block.putShort(currencyColumn[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            if (block.remaining() < Long.BYTES)
+                flush();
+            block.putLong(amountColumn[i]);
+        }
+        flush();
+        block.putInt((int) crc.getValue());
+        block.flip();
+        while (block.hasRemaining())
+            channel.write(block);
+
+        recordCount += size;
+        size = 0;
+    }
+
+    private void writeBigValues() throws IOException {
+        ByteBuffer section = ByteBuffer.allocate(Integer.BYTES + bigValueBytes.size() + Integer.BYTES);
+        section.putInt(bigValueCount).put(bigValueBytes.toByteArray());
+        crc.reset();
+        crc.update(section.array(), 0, section.position());
+        section.putInt((int) crc.getValue());
+        section.flip();
+        while (section.hasRemaining())
+            channel.write(section);
+    }
+
+    /**
+     * Writes the block buffer and adds it to the checksum
+     */
+    private void flush() throws IOException {
+        block.flip();
+        crc.update(block.array(), 0, block.limit());
+        while (block.hasRemaining())
+            channel.write(block);
+        block.clear();
+    }
+}
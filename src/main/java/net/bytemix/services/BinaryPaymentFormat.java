@@ -0,0 +1,53 @@
+package net.bytemix.services;
+
+/**
+ * Layout of the binary payment files written by BinaryPaymentFileWriter and read by BinaryPaymentFileReader.
+ *
+ * All numbers are big-endian. The header is
+ * <pre>
+ * int magic, int version, long record count, int records per block, short currency count,
+ * then for every currency 3 ASCII bytes of its code and a byte with the scale of its amounts
+ * </pre>
+ * and it is followed by blocks of records. Every block is columnar:
+ * <pre>
+ * int record count, short[count] currency (position in the header), long[count] amount, int CRC32
+ * </pre>
+ * where the amount is the unscaled value at the scale of its currency and the CRC32 covers the count and both
+ * columns. All the blocks except the last one have the same number of records, so their offsets can be computed
+ * from the header alone.
+ *
+ * Since version 2 the blocks are followed by the big values, the amounts that don't fit into a long at the scale of
+ * their currency:
+ * <pre>
+ * int count, then for every value short currency, int scale, int length, byte[length] unscaled value
+ * (two's complement), and an int CRC32 of the whole section
+ * </pre>
+ * The record count in the header doesn't include them.
+ */
+final class BinaryPaymentFormat {
+    static final int MAGIC = 0x50544231;
+    static final int VERSION = 2;
+    /**
+     * Oldest version that can be read, it has no big values
+     */
+    static final int MIN_VERSION = 1;
+    static final int DEFAULT_BLOCK_RECORDS = 1 << 20;
+    /**
+     * Offset of the record count in the header
+     */
+    static final int RECORD_COUNT_OFFSET = 8;
+    static final int FIXED_HEADER_SIZE = 22;
+    static final int CURRENCY_ENTRY_SIZE = 4;
+    static final int RECORD_SIZE = Short.BYTES + Long.BYTES;
+
+    private BinaryPaymentFormat() {
+    }
+
+    static int headerSize(int currencyCount) {
+        return FIXED_HEADER_SIZE + currencyCount * CURRENCY_ENTRY_SIZE;
+    }
+
+    static long blockSize(int records) {
+        return Integer.BYTES + (long) records * RECORD_SIZE + Integer.BYTES;
+    }
+}
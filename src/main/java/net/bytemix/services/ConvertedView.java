@@ -0,0 +1,169 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.MoneyFormat;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Balances of a MoneyService converted to one target currency, with their report lines, e.g. "CZK 100 (USD 4.3)".
+ *
+ * Every converted balance is cached together with the version of the balance (its payment count) and the rate
+ * matrix it was computed with, and it is computed again only when one of them changes. The grand total across all
+ * the currencies is cached the same way, keyed by the snapshot sequence. The cached entries are immutable, so the
+ * view can be read by any number of threads.
+ *
+ * Every method reads the latest BalanceSnapshot of the service; a caller that needs several values that match each
+ * other (e.g. all the lines of a report and their total) passes one snapshot to the variants that take it.
+ */
+public class ConvertedView {
+    private final MoneyService moneyService;
+    private final Currency targetCurrency;
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(Currencies.count());
+    private volatile Total total;
+
+    ConvertedView(MoneyService moneyService, Currency targetCurrency) {
+        this.moneyService = moneyService;
+        this.targetCurrency = targetCurrency;
+    }
+
+    public Currency getTargetCurrency() {
+        return targetCurrency;
+    }
+
+    /**
+     * @param currencyIndex
+     * @return report line of the balance in the currency with the given Currencies index (without a line
+     * separator), null if it had no payment yet
+     */
+    public String getLine(int currencyIndex) {
+        return getLine(moneyService.getSnapshot(), currencyIndex);
+    }
+
+    public String getLine(BalanceSnapshot snapshot, int currencyIndex) {
+        Entry entry = entry(snapshot, currencyIndex);
+        return entry == null ? null : entry.line;
+    }
+
+    /**
+     * @param currencyIndex
+     * @return balance in the currency with the given Currencies index converted to the target currency, null if it
+     * had no payment yet or there is no exchange rate
+     */
+    public MoneyAmount getConverted(int currencyIndex) {
+        return getConverted(moneyService.getSnapshot(), currencyIndex);
+    }
+
+    public MoneyAmount getConverted(BalanceSnapshot snapshot, int currencyIndex) {
+        Entry entry = entry(snapshot, currencyIndex);
+        return entry == null ? null : entry.converted;
+    }
+
+    /**
+     * @return sum of all the balances that can be converted to the target currency
+     */
+    public MoneyAmount getGrandTotal() {
+        return getGrandTotal(moneyService.getSnapshot());
+    }
+
+    public MoneyAmount getGrandTotal(BalanceSnapshot snapshot) {
+        return total(snapshot).amount;
+    }
+
+    /**
+     * @return number of currencies with a balance but without an exchange rate to the target currency
+     */
+    public int getUnconvertedCount() {
+        return getUnconvertedCount(moneyService.getSnapshot());
+    }
+
+    public int getUnconvertedCount(BalanceSnapshot snapshot) {
+        return total(snapshot).unconverted;
+    }
+
+    private Entry entry(BalanceSnapshot snapshot, int currencyIndex) {
+        MoneyAmount amount = snapshot.getAmount(currencyIndex);
+        if (amount == null)
+            return null;
+
+        ExchangeRateMatrix rates = moneyService.getExchangeRates();
+        long version = snapshot.getPaymentCount(currencyIndex);
+        Entry entry = entries.get(currencyIndex);
+        if (entry != null && entry.version == version && entry.rates == rates)
+            return entry;
+
+        MoneyAmount converted = convert(amount, rates);
+        StringBuilder line = MoneyFormat.append(new StringBuilder(48), amount);
+        if (converted != null && converted != amount)
+            MoneyFormat.append(line.append(" ("), converted).append(')');
+
+        entry = new Entry(version, rates, converted, line.toString());
+        entries.set(currencyIndex, entry);
+        return entry;
+    }
+
+    private MoneyAmount convert(MoneyAmount amount, ExchangeRateMatrix rates) {
+        if (amount.getCurrency().equals(targetCurrency))
+            return amount;
+
+        BigDecimal rate = rates.rate(amount.getCurrency(), targetCurrency);
+        if (rate == null)
+            return null;
+
+        BigDecimal value = moneyService.getPrecisionPolicy().roundExchanged(rate.multiply(amount.getValue()),
+                Currencies.indexOf(targetCurrency));
+        return new MoneyAmount(value, targetCurrency);
+    }
+
+    private Total total(BalanceSnapshot snapshot) {
+        ExchangeRateMatrix rates = moneyService.getExchangeRates();
+        Total current = total;
+        if (current != null && current.version == snapshot.getSequence() && current.rates == rates)
+            return current;
+
+        BigDecimal sum = BigDecimal.ZERO;
+        int unconverted = 0;
+        for (int i = 0; i < Currencies.count(); i++) {
+            MoneyAmount converted = getConverted(snapshot, i);
+            if (converted != null)
+                sum = sum.add(converted.getValue());
+            else if (snapshot.getAmount(i) != null)
+                unconverted++;
+        }
+
+        current = new Total(snapshot.getSequence(), rates, new MoneyAmount(sum, targetCurrency), unconverted);
+        total = current;
+        return current;
+    }
+
+    private static final class Entry {
+        private final long version;
+        private final ExchangeRateMatrix rates;
+        private final MoneyAmount converted;
+        private final String line;
+
+        private Entry(long version, ExchangeRateMatrix rates, MoneyAmount converted, String line) {
+            this.version = version;
+            this.rates = rates;
+            this.converted = converted;
+            this.line = line;
+        }
+    }
+
+    private static final class Total {
+        private final long version;
+        private final ExchangeRateMatrix rates;
+        private final MoneyAmount amount;
+        private final int unconverted;
+
+        private Total(long version, ExchangeRateMatrix rates, MoneyAmount amount, int unconverted) {
+            this.version = version;
+            this.rates = rates;
+            this.amount = amount;
+            this.unconverted = unconverted;
+        }
+    }
+}
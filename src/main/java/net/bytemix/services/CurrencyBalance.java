@@ -0,0 +1,226 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.FixedPointMoney;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.PrecisionPolicy;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Currency;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Running total of payments in a single currency that can be updated by any number of threads at once.
+ *
+ * The total is kept as a set of striped long accumulators holding the amount scaled to the currency's default
+ * fraction digits. Each writer thread is hashed to its own stripe, so concurrent writers rarely touch the same
+ * cache line and no update is ever lost. Amounts that can't be represented in the scaled long (more fraction digits
+ * than the currency uses, or a stripe that would overflow) are added to a BigDecimal remainder instead, so the total
+ * stays exact. With a PrecisionPolicy that normalizes the accumulation, such amounts are rounded to the currency's
+ * fraction digits instead, so the remainder only ever holds what overflows the long.
+ */
+public class CurrencyBalance {
+    /**
+     * Number of longs between two stripes, so that each stripe sits on its own cache line. The first long of a
+     * stripe is the sum, the second one the count of payments.
+     */
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripeCount();
+
+    private final Currency currency;
+    private final int scale;
+    private final PrecisionPolicy policy;
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+    private final AtomicReference<BigDecimal> remainder = new AtomicReference<>(BigDecimal.ZERO);
+    /**
+     * Largest scale of all the added amounts. The total is reported with this scale, which is what
+     * chaining BigDecimal.add would produce.
+     */
+    private final AtomicInteger valueScale = new AtomicInteger(Integer.MIN_VALUE);
+
+    public CurrencyBalance(Currency currency) {
+        this(currency, PrecisionPolicy.DEFAULT);
+    }
+
+    public CurrencyBalance(Currency currency, PrecisionPolicy policy) {
+        if (currency == null || policy == null)
+            throw new IllegalArgumentException("Currency and precision policy cannot be null");
+
+        this.currency = currency;
+        this.scale = Math.max(currency.getDefaultFractionDigits(), 0);
+        this.policy = policy;
+    }
+
+    public void add(MoneyAmount payment) {
+        if (payment == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        if (payment.getCurrency() != currency)
+            throw new IllegalArgumentException("You can add only the same currency to the same currency");
+
+        BigDecimal value = payment.getValue();
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < Long.SIZE) {
+            add(unscaled.longValue(), value.scale());
+        } else {
+            value = normalize(value);
+            updateValueScale(value.scale());
+            addToRemainder(value);
+            countPayments(1);
+        }
+    }
+
+    /**
+     * Adds unscaledValue * 10^-valueScale to the balance. Doesn't allocate anything unless the amount has more
+     * fraction digits than the currency uses or the balance grows beyond the long range.
+     *
+     * @param unscaledValue
+     * @param valueScale
+     */
+    public void add(long unscaledValue, int valueScale) {
+        if (valueScale > scale && policy.isNormalizedAccumulation()) {
+            unscaledValue = policy.normalize(unscaledValue, valueScale, scale);
+            valueScale = scale;
+        }
+        updateValueScale(valueScale);
+
+        if (!addToStripe(unscaledValue, valueScale))
+            addToRemainder(BigDecimal.valueOf(unscaledValue, valueScale));
+        countPayments(1);
+    }
+
+    private boolean addToStripe(long unscaledValue, int valueScale) {
+        if (valueScale > scale)
+            return false;
+
+        try {
+            return addToStripe(FixedPointMoney.rescale(unscaledValue, valueScale, scale));
+        } catch (ArithmeticException e) {
+            //Doesn't fit into a long
+            return false;
+        }
+    }
+
+    /**
+     * Adds pre-aggregated payments to the balance.
+     *
+     * @param minorUnits sum of the payments that fit into a long, scaled to the currency's fraction digits
+     * @param count number of the aggregated payments
+     * @param valueScale largest scale of the aggregated payments
+     * @param remainder sum of the payments that didn't fit into minorUnits, may be null
+     */
+    public void addTotal(long minorUnits, long count, int valueScale, BigDecimal remainder) {
+        //A normalized total rounds the sum of its extra digits once, not every payment on its own
+        updateValueScale(policy.isNormalizedAccumulation() ? Math.min(valueScale, scale) : valueScale);
+
+        if (!addToStripe(minorUnits))
+            addToRemainder(BigDecimal.valueOf(minorUnits, scale));
+        if (remainder != null)
+            addToRemainder(normalize(remainder));
+        countPayments(count);
+    }
+
+    /**
+     * The count changes with every update of the balance, so it can also be used as its version: if the count
+     * didn't change, neither did the value. The count is updated after the value.
+     *
+     * @return number of payments added to the balance
+     */
+    public long getPaymentCount() {
+        long count = 0;
+        for (int i = 0; i < STRIPES; i++)
+            count += cells.get(i * PADDING + 1);
+
+        return count;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    /**
+     * @return the current total. Concurrent updates may or may not be included.
+     */
+    public MoneyAmount toMoneyAmount() {
+        return new MoneyAmount(getValue(), currency);
+    }
+
+    public BigDecimal getValue() {
+        BigDecimal striped = new BigDecimal(sumStripes(), scale);
+        int reportedScale = valueScale.get();
+        if (reportedScale != Integer.MIN_VALUE && reportedScale < scale)
+            striped = striped.setScale(reportedScale);
+
+        BigDecimal rest = remainder.get();
+        return rest.signum() == 0 ? striped : striped.add(rest);
+    }
+
+    private boolean addToStripe(long delta) {
+        int index = stripeIndex();
+        while (true) {
+            long current = cells.get(index);
+            long next = current + delta;
+            //Overflow happened when both operands have a different sign than the result
+            if (((current ^ next) & (delta ^ next)) < 0)
+                return false;
+            if (cells.compareAndSet(index, current, next))
+                return true;
+        }
+    }
+
+    private void countPayments(long count) {
+        cells.addAndGet(stripeIndex() + 1, count);
+    }
+
+    private BigDecimal normalize(BigDecimal value) {
+        if (value.scale() <= scale || !policy.isNormalizedAccumulation())
+            return value;
+
+        return value.setScale(scale, policy.getRounding());
+    }
+
+    private void addToRemainder(BigDecimal value) {
+        while (true) {
+            BigDecimal current = remainder.get();
+            if (remainder.compareAndSet(current, current.add(value)))
+                return;
+        }
+    }
+
+    private void updateValueScale(int newScale) {
+        int current = valueScale.get();
+        while (newScale > current && !valueScale.compareAndSet(current, newScale))
+            current = valueScale.get();
+    }
+
+    private BigInteger sumStripes() {
+        long sum = 0;
+        BigInteger overflow = null;
+        for (int i = 0; i < STRIPES; i++) {
+            long cell = cells.get(i * PADDING);
+            long next = sum + cell;
+            if (((sum ^ next) & (cell ^ next)) < 0) {
+                overflow = overflow == null ? BigInteger.valueOf(sum) : overflow.add(BigInteger.valueOf(sum));
+                next = cell;
+            }
+            sum = next;
+        }
+        return overflow == null ? BigInteger.valueOf(sum) : overflow.add(BigInteger.valueOf(sum));
+    }
+
+    private static int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+
+    private static int stripeCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors)
+            stripes <<= 1;
+        return stripes;
+    }
+}
@@ -0,0 +1,52 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.MoneyAmount;
+
+/**
+ * Count, sum, min and max of the payments of one currency in a time range of a PaymentEventStore. Immutable.
+ */
+public class EventStats {
+    private final long count;
+    private final MoneyAmount sum;
+    private final MoneyAmount min;
+    private final MoneyAmount max;
+
+    public EventStats(long count, MoneyAmount sum, MoneyAmount min, MoneyAmount max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public MoneyAmount getSum() {
+        return sum;
+    }
+
+    /**
+     * @return smallest payment, null if there was none
+     */
+    public MoneyAmount getMin() {
+        return min;
+    }
+
+    /**
+     * @return biggest payment, null if there was none
+     */
+    public MoneyAmount getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "EventStats{" +
+                "count=" + count +
+                ", sum=" + sum +
+                ", min=" + min +
+                ", max=" + max +
+                '}';
+    }
+}
@@ -0,0 +1,47 @@
+package net.bytemix.services;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rates read by ExchangeRateLoader and the problems found in them. Immutable.
+ */
+public class ExchangeRateLoadResult {
+    private final Map<Currency, Map<Currency, BigDecimal>> rates;
+    private final int pairCount;
+    private final List<String> errors;
+
+    ExchangeRateLoadResult(Map<Currency, Map<Currency, BigDecimal>> rates, int pairCount, List<String> errors) {
+        this.rates = rates;
+        this.pairCount = pairCount;
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return whether the rates can be published
+     */
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return rates by source and target currency, including the computed inverse ones. Must not be modified.
+     */
+    public Map<Currency, Map<Currency, BigDecimal>> getRates() {
+        return rates;
+    }
+
+    /**
+     * @return number of distinct pairs in the file
+     */
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+}
@@ -0,0 +1,167 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+/**
+ * Reads a file of exchange rates ("USD, CZK, 25" per line) into a new table of rates and validates it. Doesn't
+ * change any MoneyService, see MoneyService.loadExchangeRatesFromFile.
+ *
+ * The lines are streamed and parsed in parallel. The table is invalid if the file has a line with bad format, the
+ * same pair twice with different rates, or both directions of a pair with rates that aren't reciprocal within the
+ * tolerance. A pair that is in the file only in one direction gets the inverse rate in the other one, rounded to the
+ * inverse scale.
+ */
+public class ExchangeRateLoader {
+    public static final int DEFAULT_INVERSE_SCALE = 5;
+    public static final BigDecimal DEFAULT_TOLERANCE = new BigDecimal("0.001");
+
+    private final int inverseScale;
+    private final RoundingMode rounding;
+    private final BigDecimal tolerance;
+
+    public ExchangeRateLoader() {
+        this(DEFAULT_INVERSE_SCALE, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @param inverseScale number of decimal places of the computed inverse rates
+     * @param tolerance how much the product of the rates of both directions of a pair may differ from 1
+     */
+    public ExchangeRateLoader(int inverseScale, BigDecimal tolerance) {
+        this(inverseScale, RoundingMode.HALF_UP, tolerance);
+    }
+
+    /**
+     * @param inverseScale number of decimal places of the computed inverse rates
+     * @param rounding rounding of the computed inverse rates
+     * @param tolerance how much the product of the rates of both directions of a pair may differ from 1
+     */
+    public ExchangeRateLoader(int inverseScale, RoundingMode rounding, BigDecimal tolerance) {
+        if (rounding == null)
+            throw new IllegalArgumentException("Rounding mode cannot be null");
+        if (inverseScale < 0)
+            throw new IllegalArgumentException("Inverse scale cannot be negative");
+        if (tolerance == null || tolerance.signum() < 0)
+            throw new IllegalArgumentException("Tolerance must be a non-negative number");
+
+        this.inverseScale = inverseScale;
+        this.rounding = rounding;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param file
+     * @return rates of the file with the inverse ones, and the reasons why they are not valid if they aren't
+     */
+    public ExchangeRateLoadResult load(Path file) {
+        if (file == null)
+            throw new IllegalArgumentException("File cannot be null");
+
+        Map<Integer, BigDecimal> pairs = new ConcurrentHashMap<>();
+        Queue<String> errors = new ConcurrentLinkedQueue<>();
+        try (Stream<String> lines = Files.lines(file)) {
+            lines.parallel().forEach(line -> parseLine(line, pairs, errors));
+        } catch (IOException | UncheckedIOException e) {
+            throw new RuntimeException("Couldn't read file", e);
+        }
+
+        List<String> allErrors = new ArrayList<>(errors);
+        Map<Currency, Map<Currency, BigDecimal>> rates = validate(pairs, allErrors);
+        //The order of the parse errors depends on the threads, sorting makes it repeatable
+        Collections.sort(allErrors);
+        return new ExchangeRateLoadResult(rates, pairs.size(), allErrors);
+    }
+
+    private void parseLine(String line, Map<Integer, BigDecimal> pairs, Queue<String> errors) {
+        if (line.trim().isEmpty())
+            return;
+
+        int firstComma = line.indexOf(',');
+        int secondComma = firstComma < 0 ? -1 : line.indexOf(',', firstComma + 1);
+        if (secondComma < 0 || line.indexOf(',', secondComma + 1) >= 0) {
+            errors.add("The exchange rate line should have 3 components: " + line);
+            return;
+        }
+
+        int from = currencyIndex(line, 0, firstComma);
+        int to = currencyIndex(line, firstComma + 1, secondComma);
+        if (from < 0 || to < 0) {
+            errors.add("Unknown currency: " + line);
+            return;
+        }
+
+        BigDecimal rate;
+        try {
+            rate = new BigDecimal(line.substring(secondComma + 1).trim());
+        } catch (NumberFormatException e) {
+            errors.add("Bad exchange rate: " + line);
+            return;
+        }
+        if (rate.signum() <= 0 || (from == to && rate.compareTo(BigDecimal.ONE) != 0)) {
+            errors.add("Impossible exchange rate: " + line);
+            return;
+        }
+
+        BigDecimal previous = pairs.putIfAbsent(from * Currencies.count() + to, rate);
+        if (previous != null && previous.compareTo(rate) != 0)
+            errors.add("Conflicting exchange rates " + previous + " and " + rate + " of "
+                    + Currencies.currency(from) + "/" + Currencies.currency(to));
+    }
+
+    /**
+     * @return Currencies index of the code between start and end, surrounded by whitespace, or -1
+     */
+    private static int currencyIndex(String line, int start, int end) {
+        while (start < end && Character.isWhitespace(line.charAt(start)))
+            start++;
+        while (end > start && Character.isWhitespace(line.charAt(end - 1)))
+            end--;
+        if (end - start != 3)
+            return -1;
+
+        return Currencies.indexOf(line.charAt(start), line.charAt(start + 1), line.charAt(start + 2));
+    }
+
+    private Map<Currency, Map<Currency, BigDecimal>> validate(Map<Integer, BigDecimal> pairs, List<String> errors) {
+        int count = Currencies.count();
+        Map<Currency, Map<Currency, BigDecimal>> rates = new HashMap<>();
+        for (Map.Entry<Integer, BigDecimal> pair : pairs.entrySet()) {
+            int from = pair.getKey() / count;
+            int to = pair.getKey() % count;
+            BigDecimal rate = pair.getValue();
+            put(rates, from, to, rate);
+
+            BigDecimal reverse = pairs.get(to * count + from);
+            if (reverse == null) {
+                put(rates, to, from, BigDecimal.ONE.divide(rate, inverseScale, rounding));
+            } else if (from < to && rate.multiply(reverse).subtract(BigDecimal.ONE).abs().compareTo(tolerance) > 0) {
+                errors.add("Exchange rates " + rate + " of " + Currencies.currency(from) + "/"
+                        + Currencies.currency(to) + " and " + reverse + " of " + Currencies.currency(to) + "/"
+                        + Currencies.currency(from) + " are not reciprocal");
+            }
+        }
+        return rates;
+    }
+
+    private static void put(Map<Currency, Map<Currency, BigDecimal>> rates, int from, int to, BigDecimal rate) {
+        rates.computeIfAbsent(Currencies.currency(from), currency -> new HashMap<>())
+                .put(Currencies.currency(to), rate);
+    }
+}
@@ -0,0 +1,131 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.PrecisionPolicy;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Immutable table of exchange rates between all the currencies that have at least one rate.
+ *
+ * The rates are stored in a flat array indexed by a dense per-matrix currency index, so a lookup is a couple of
+ * array reads. Pairs without a direct rate are filled in by triangulation through a pivot currency
+ * (from -> pivot -> to) when the rates to and from the pivot are known, rounded by the PrecisionPolicy like the
+ * inverse rates.
+ *
+ * Because the matrix never changes, readers can use it without any locking; a new set of rates is published by
+ * building a new matrix and swapping the reference.
+ */
+public final class ExchangeRateMatrix {
+    public static final ExchangeRateMatrix EMPTY = new ExchangeRateMatrix(new int[0], new BigDecimal[0], 0);
+
+    /**
+     * Index into the matrix by Currencies index, -1 for currencies without any rate
+     */
+    private final int[] matrixIndex;
+    private final BigDecimal[] rates;
+    private final int size;
+
+    private ExchangeRateMatrix(int[] matrixIndex, BigDecimal[] rates, int size) {
+        this.matrixIndex = matrixIndex;
+        this.rates = rates;
+        this.size = size;
+    }
+
+    /**
+     * @param directRates rates by source and target currency
+     * @param pivot currency used to triangulate the missing pairs, may be null to use only the direct rates
+     * @return matrix with the triangulated rates rounded by the default PrecisionPolicy
+     */
+    public static ExchangeRateMatrix build(Map<Currency, Map<Currency, BigDecimal>> directRates, Currency pivot) {
+        return build(directRates, pivot, PrecisionPolicy.DEFAULT);
+    }
+
+    /**
+     * @param directRates rates by source and target currency
+     * @param pivot currency used to triangulate the missing pairs, may be null to use only the direct rates
+     * @param precisionPolicy rounding of the triangulated rates
+     * @return
+     */
+    public static ExchangeRateMatrix build(Map<Currency, Map<Currency, BigDecimal>> directRates, Currency pivot,
+                                           PrecisionPolicy precisionPolicy) {
+        if (directRates == null || precisionPolicy == null)
+            throw new IllegalArgumentException("Rates and precision policy cannot be null");
+
+        TreeSet<Integer> currencies = new TreeSet<>();
+        for (Map.Entry<Currency, Map<Currency, BigDecimal>> from : directRates.entrySet()) {
+            currencies.add(Currencies.indexOf(from.getKey()));
+            for (Currency to : from.getValue().keySet())
+                currencies.add(Currencies.indexOf(to));
+        }
+        if (currencies.isEmpty())
+            return EMPTY;
+
+        int[] matrixIndex = new int[Currencies.count()];
+        Arrays.fill(matrixIndex, -1);
+        int size = 0;
+        for (int currencyIndex : currencies)
+            matrixIndex[currencyIndex] = size++;
+
+        BigDecimal[] rates = new BigDecimal[size * size];
+        for (int i = 0; i < size; i++)
+            rates[i * size + i] = BigDecimal.ONE;
+        for (Map.Entry<Currency, Map<Currency, BigDecimal>> from : directRates.entrySet()) {
+            int fromIndex = matrixIndex[Currencies.indexOf(from.getKey())];
+            for (Map.Entry<Currency, BigDecimal> to : from.getValue().entrySet()) {
+                if (!from.getKey().equals(to.getKey()))
+                    rates[fromIndex * size + matrixIndex[Currencies.indexOf(to.getKey())]] = to.getValue();
+            }
+        }
+
+        int pivotIndex = pivot == null ? -1 : matrixIndex[Currencies.indexOf(pivot)];
+        if (pivotIndex >= 0)
+            triangulate(rates, size, pivotIndex, precisionPolicy);
+
+        return new ExchangeRateMatrix(matrixIndex, rates, size);
+    }
+
+    private static void triangulate(BigDecimal[] rates, int size, int pivot, PrecisionPolicy precisionPolicy) {
+        for (int from = 0; from < size; from++) {
+            BigDecimal toPivot = rates[from * size + pivot];
+            if (toPivot == null)
+                continue;
+
+            for (int to = 0; to < size; to++) {
+                BigDecimal fromPivot = rates[pivot * size + to];
+                if (rates[from * size + to] == null && fromPivot != null)
+                    rates[from * size + to] = precisionPolicy.roundDerivedRate(toPivot.multiply(fromPivot));
+            }
+        }
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return null if there is no rate, not even through the pivot currency
+     */
+    public BigDecimal rate(Currency from, Currency to) {
+        return rate(Currencies.indexOf(from), Currencies.indexOf(to));
+    }
+
+    /**
+     * @param fromIndex Currencies index of the source currency
+     * @param toIndex Currencies index of the target currency
+     * @return null if there is no rate, not even through the pivot currency
+     */
+    public BigDecimal rate(int fromIndex, int toIndex) {
+        if (size == 0)
+            return null;
+
+        int from = matrixIndex[fromIndex];
+        int to = matrixIndex[toIndex];
+        if (from < 0 || to < 0)
+            return null;
+
+        return rates[from * size + to];
+    }
+}
@@ -1,21 +1,20 @@
 package net.bytemix.services;
 
 import net.bytemix.MoneyParseException;
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.FixedPointMoney;
 import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.MoneyFormat;
+import net.bytemix.domain.PrecisionPolicy;
+import net.bytemix.metrics.TrackerMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Service that handles more complex logic done with MoneyAmount, especially those operations that either require
@@ -27,30 +26,62 @@ import java.util.stream.Stream;
  * Created by Filip Nguyen on 31.5.17.
  */
 public class MoneyService {
-    private static MoneyService instance;
-    private static DecimalFormat formatter;
-    private Logger logger = LoggerFactory.getLogger(MoneyService.class);
+    private static final Currency USD = Currency.getInstance("USD");
+    private static final int LOGGED_RATE_ERRORS = 20;
+    private static final int SNAPSHOT_ATTEMPTS = 16;
     /**
-     * Because we use ConcurrentHashMap and there is only single writer in this application,
-     * we don't need any additional synchronization (lost updates are not a danger). On top of that
-     * we use immutable MoneyAmount
+     * Balances indexed by Currencies index. Each balance is updated atomically by CurrencyBalance itself, so any
+     * number of threads can register payments at the same time without lost updates. The array slot is only
+     * written when a currency is seen for the first time.
      *
      * Non-trivial application would use a repository pattern or data access object pattern and would
      * store data in a database.
      */
-    private Map<Currency, MoneyAmount> moneyAmountByCurrency = new ConcurrentHashMap<>();
+    private AtomicReferenceArray<CurrencyBalance> balances = new AtomicReferenceArray<>(Currencies.count());
+    /**
+     * Rates as they were set, only accessed while holding the rateLock. Readers never look at this map, they use
+     * the rate matrix that is rebuilt from it and published atomically after every change.
+     */
     private Map<Currency, Map<Currency, BigDecimal>> rate = new HashMap<>();
+    private final Object rateLock = new Object();
+    private volatile ExchangeRateMatrix rateMatrix = ExchangeRateMatrix.EMPTY;
+    private Currency pivotCurrency = USD;
+    private final PrecisionPolicy precisionPolicy;
+    private volatile PaymentJournal journal;
+    private volatile PaymentEventStore eventStore;
+    private volatile RejectLog rejectLog;
+    private volatile PaymentWindows windows;
+    private final TrackerMetrics metrics = new TrackerMetrics();
+    private volatile ConvertedView reportView = new ConvertedView(this, USD);
+    /**
+     * Every update of the balances is counted when it starts and when it is done, when the counts are equal no
+     * update is in progress. See getSnapshot.
+     */
+    private final LongAdder writesStarted = new LongAdder();
+    private final LongAdder writesFinished = new LongAdder();
+    private final Object snapshotLock = new Object();
+    /**
+     * Set while a reader that couldn't find a moment without updates holds the snapshotLock, new updates wait for it
+     */
+    private volatile boolean snapshotPending;
+    private volatile BalanceSnapshot snapshot;
 
 
-    public static synchronized MoneyService getInstance() {
-        if (instance == null)
-            instance = new MoneyService();
-
-        return instance;
+    /**
+     * Creates an empty service. Every instance is an independent ledger with its own balances, rates and journal.
+     */
+    public MoneyService() {
+        this(PrecisionPolicy.DEFAULT);
     }
 
-    private MoneyService() {
-        formatter = new DecimalFormat("0.##");
+    /**
+     * @param precisionPolicy rounding of the exchanged amounts, inverse rates and balances
+     */
+    public MoneyService(PrecisionPolicy precisionPolicy) {
+        if (precisionPolicy == null)
+            throw new IllegalArgumentException("Precision policy cannot be null");
+
+        this.precisionPolicy = precisionPolicy;
     }
 
     /**
@@ -66,89 +97,211 @@ public class MoneyService {
         if (targetCurrency.equals(money.getCurrency()))
             return money;
 
-        //Depending on project's standards, one can throw some checked exception
-        if (!rate.containsKey(money.getCurrency()) || !rate.get(money.getCurrency()).containsKey(targetCurrency))
-            return null;
-
-        return new MoneyAmount(rate.get(money.getCurrency()).get(targetCurrency).multiply(money.getValue()), targetCurrency);
+        long start = metrics.start();
+        try {
+            BigDecimal exchangeRate = rateMatrix.rate(money.getCurrency(), targetCurrency);
+
+            //Depending on project's standards, one can throw some checked exception
+            if (exchangeRate == null)
+                return null;
+
+            BigDecimal value = precisionPolicy.roundExchanged(exchangeRate.multiply(money.getValue()),
+                    Currencies.indexOf(targetCurrency));
+            return new MoneyAmount(value, targetCurrency);
+        } finally {
+            //Lookups without a rate are measured too
+            metrics.recordExchange(start);
+        }
     }
 
+    /**
+     * Sets one rate and rebuilds the rate matrix, use setExchangeRates to set many rates at once.
+     *
+     * @param from
+     * @param to
+     * @param exchangeRate
+     */
     public void setExchangeRate(Currency from, Currency to, BigDecimal exchangeRate) {
+        synchronized (rateLock) {
+            putRate(from, to, exchangeRate);
+            publishRates();
+        }
+    }
+
+    /**
+     * Adds the rates to the current ones and rebuilds the rate matrix once for all of them.
+     *
+     * @param rates rates by source and target currency
+     */
+    public void setExchangeRates(Map<Currency, Map<Currency, BigDecimal>> rates) {
+        if (rates == null)
+            throw new IllegalArgumentException("Rates cannot be null");
+
+        synchronized (rateLock) {
+            for (Map.Entry<Currency, Map<Currency, BigDecimal>> from : rates.entrySet()) {
+                for (Map.Entry<Currency, BigDecimal> to : from.getValue().entrySet())
+                    putRate(from.getKey(), to.getKey(), to.getValue());
+            }
+            publishRates();
+        }
+    }
+
+    /**
+     * Sets the currency through which the rates between currencies without a direct rate are computed.
+     *
+     * @param pivotCurrency null to use only the direct rates
+     */
+    public void setPivotCurrency(Currency pivotCurrency) {
+        synchronized (rateLock) {
+            this.pivotCurrency = pivotCurrency;
+            publishRates();
+        }
+    }
+
+    /**
+     * @return the current rates, the returned matrix never changes
+     */
+    public ExchangeRateMatrix getExchangeRates() {
+        return rateMatrix;
+    }
+
+    private void putRate(Currency from, Currency to, BigDecimal exchangeRate) {
         if (!rate.containsKey(from))
             rate.put(from, new HashMap<Currency, BigDecimal>());
 
         rate.get(from).put(to, exchangeRate);
     }
 
+    private void publishRates() {
+        rateMatrix = ExchangeRateMatrix.build(rate, pivotCurrency, precisionPolicy);
+    }
+
     public String formatMoneyAmount(MoneyAmount moneyAmount) {
-        return String.format("%s %s", moneyAmount.getCurrency().getCurrencyCode(),
-                formatter.format(moneyAmount.getValue()));
+        return MoneyFormat.format(moneyAmount);
+    }
+
+    /**
+     * Sets the currency to which the reported amounts are converted, USD by default.
+     *
+     * @param reportCurrency
+     */
+    public void setReportCurrency(Currency reportCurrency) {
+        if (reportCurrency == null)
+            throw new IllegalArgumentException("Currency cannot be null");
+
+        reportView = new ConvertedView(this, reportCurrency);
+    }
+
+    public Currency getReportCurrency() {
+        return reportView.getTargetCurrency();
+    }
+
+    /**
+     * @return balances converted to the report currency, computed again only when a balance or the rates change
+     */
+    public ConvertedView getReportView() {
+        return reportView;
     }
 
     /**
      * Creates a formatted String representation of the moneyAmount, including the
-     * exchanged USD currency if it exists.
+     * exchanged amount in the report currency if it exists.
      * @param moneyAmount
      * @return
      */
     public String getAmountStringWithExchange(MoneyAmount moneyAmount) {
-        if (!moneyAmount.getCurrency().equals(Currency.getInstance("USD"))) {
-            MoneyAmount exchangedToUsd = exchange(moneyAmount, Currency.getInstance("USD"));
-
-            if (exchangedToUsd == null)  {
-                //Without exchange rate, just output the normal amount
-                return formatMoneyAmount(moneyAmount);
-            }
+        return appendAmountWithExchange(new StringBuilder(48), moneyAmount).toString();
+    }
 
-            return String.format("%s (%s)", formatMoneyAmount(moneyAmount), formatMoneyAmount(exchangedToUsd));
-        } else {
-            return formatMoneyAmount(moneyAmount);
+    /**
+     * Same as getAmountStringWithExchange, but appends the text to the target instead of creating a String.
+     *
+     * @param target
+     * @param moneyAmount
+     * @return target
+     */
+    public StringBuilder appendAmountWithExchange(StringBuilder target, MoneyAmount moneyAmount) {
+        Currency reportCurrency = getReportCurrency();
+        MoneyFormat.append(target, moneyAmount);
+        if (!moneyAmount.getCurrency().equals(reportCurrency)) {
+            MoneyAmount exchanged = exchange(moneyAmount, reportCurrency);
+
+            //Without exchange rate, just output the normal amount
+            if (exchanged != null)
+                MoneyFormat.append(target.append(" ("), exchanged).append(')');
         }
+        return target;
     }
 
-    public void loadFromFile(Path file) {
-
+    /**
+     * Loads all the payments from the file, either a text file (see PaymentFileReader, bad lines are skipped) or a
+     * binary one (see BinaryPaymentFileReader).
+     *
+     * @param file
+     * @return sums of the payments that were loaded from the file, including the count of bad lines
+     */
+    public PaymentTotals loadFromFile(Path file) {
         if (file == null)
             throw new IllegalArgumentException("File cannot be null");
 
-        Stream<String> lines = null;
-        try {
-            lines = Files.lines(file);
-        } catch (IOException e) {
-            throw new RuntimeException("Couldn't read file", e);
-        }
+        PaymentTotals totals = BinaryPaymentFileReader.isBinary(file)
+                ? new BinaryPaymentFileReader().aggregate(file)
+                : new PaymentFileReader(rejectLog).aggregate(file);
+        totals.applyTo(this);
 
-        for (String line : lines.collect(Collectors.toList())) {
-            try {
-                registerPayment(new MoneyAmount(line));
-            } catch (MoneyParseException mpe) {
-                logger.info("Line [" + line + "] had bad format", mpe);
-            }
-        }
+        metrics.paymentsRegistered(totals.getPaymentCount());
+        metrics.parseFailed(totals.getRejectedCount());
+        if (totals.getRejectedCount() > 0)
+            Log.logger.warn(totals.getRejectedCount() + " lines of file " + file + " had bad format");
 
+        return totals;
     }
 
-    public void loadExchangeRatesFromFile(Path file) {
-        if (file == null)
-            throw new IllegalArgumentException("File cannot be null");
+    /**
+     * Loads the rates of the file with the inverse rate precision of the policy, see loadExchangeRatesFromFile(Path,
+     * ExchangeRateLoader).
+     *
+     * @param file
+     * @return
+     */
+    public ExchangeRateLoadResult loadExchangeRatesFromFile(Path file) {
+        return loadExchangeRatesFromFile(file, new ExchangeRateLoader(precisionPolicy.getInverseRateScale(),
+                precisionPolicy.getRounding(), ExchangeRateLoader.DEFAULT_TOLERANCE));
+    }
 
-        Stream<String> lines = null;
-        try {
-            lines = Files.lines(file);
-        } catch (IOException e) {
-            throw new RuntimeException("Couldn't read file", e);
+    /**
+     * Reads and validates the rates of the file without holding any lock, and only if they are valid, adds them to
+     * the current rates and publishes the result at once. Invalid rates are not used at all.
+     *
+     * @param file
+     * @param loader
+     * @return loaded rates with the problems found in them
+     */
+    public ExchangeRateLoadResult loadExchangeRatesFromFile(Path file, ExchangeRateLoader loader) {
+        if (file == null || loader == null)
+            throw new IllegalArgumentException("File and loader cannot be null");
+
+        ExchangeRateLoadResult result = loader.load(file);
+        if (!result.isValid()) {
+            Log.logger.warn(result.getErrors().size() + " problems in exchange rates file " + file
+                    + ", no rate from it is used");
+            for (String error : result.getErrors().subList(0, Math.min(LOGGED_RATE_ERRORS, result.getErrors().size())))
+                Log.logger.warn(error);
+            return result;
         }
 
-        for (String line : lines.collect(Collectors.toList())) {
-            try {
-                saveExchangeRate(line);
-            } catch (Exception ex) {
-                logger.warn("Error parsing exchange rate: " + line);
-            }
-        }
+        setExchangeRates(result.getRates());
+        return result;
     }
 
     public void saveExchangeRate(String line) {
+        synchronized (rateLock) {
+            putExchangeRate(line);
+            publishRates();
+        }
+    }
+
+    private void putExchangeRate(String line) {
         String[] split = line.split(",");
 
         if (split.length != 3)
@@ -161,27 +314,322 @@ public class MoneyService {
         /**
          * Set exchange rate both ways
          */
-        setExchangeRate(c1, c2, rate);
-        setExchangeRate(c2, c1, BigDecimal.ONE.divide(rate, 5,RoundingMode.HALF_UP));
+        putRate(c1, c2, rate);
+        putRate(c2, c1, precisionPolicy.inverseRate(rate));
+
+    }
+
+    /**
+     * Starts writing all the payments registered through registerPayment into the journal. Payments loaded from
+     * files are not journaled, the files themselves are their durable copy.
+     *
+     * @param journal null to stop journaling
+     */
+    public void setJournal(PaymentJournal journal) {
+        this.journal = journal;
+    }
+
+    public PaymentJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Starts keeping the individual payments registered through registerPayment and registerPayments in the store.
+     * Like with the journal, payments loaded from files are not stored.
+     *
+     * @param eventStore null to stop storing
+     */
+    public void setEventStore(PaymentEventStore eventStore) {
+        this.eventStore = eventStore;
+    }
+
+    public PaymentEventStore getEventStore() {
+        return eventStore;
+    }
 
+    /**
+     * Sets where the lines that couldn't be parsed are recorded, by loadFromFile and by the readers that register
+     * into this service.
+     *
+     * @param rejectLog null to only count them
+     */
+    public void setRejectLog(RejectLog rejectLog) {
+        this.rejectLog = rejectLog;
     }
 
+    public RejectLog getRejectLog() {
+        return rejectLog;
+    }
+
+    /**
+     * Safe to call from any number of threads at once.
+     *
+     * @param payment
+     */
     public void registerPayment(MoneyAmount payment) {
         if (payment == null)
             throw new IllegalArgumentException("Money cannot be null");
 
-        if (!moneyAmountByCurrency.containsKey(payment.getCurrency()))
-            moneyAmountByCurrency.put(payment.getCurrency(), payment);
-        else {
-            MoneyAmount balance = moneyAmountByCurrency.get(payment.getCurrency());
-            moneyAmountByCurrency.put(payment.getCurrency(), balance.add(payment));
+        long start = metrics.start();
+        PaymentJournal journal = this.journal;
+        if (journal != null)
+            journal.append(payment);
+        PaymentEventStore eventStore = this.eventStore;
+        if (eventStore != null)
+            eventStore.append(payment);
+
+        beginWrite();
+        try {
+            balanceFor(Currencies.indexOf(payment.getCurrency())).add(payment);
+        } finally {
+            endWrite();
+        }
+        PaymentWindows windows = this.windows;
+        if (windows != null)
+            windows.add(payment);
+        metrics.paymentsRegistered(1);
+        metrics.recordRegister(start);
+    }
+
+    public void registerPayment(FixedPointMoney payment) {
+        if (payment == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        registerPayment(payment.getCurrencyIndex(), payment.getMinorUnits(), payment.getScale());
+    }
+
+    /**
+     * Registers payment of unscaledValue * 10^-scale in the currency with the given Currencies index. This is the
+     * allocation-free variant for the hot paths.
+     *
+     * @param currencyIndex
+     * @param unscaledValue
+     * @param scale
+     */
+    public void registerPayment(int currencyIndex, long unscaledValue, int scale) {
+        long start = metrics.start();
+        PaymentJournal journal = this.journal;
+        if (journal != null)
+            journal.append(currencyIndex, unscaledValue, scale);
+        PaymentEventStore eventStore = this.eventStore;
+        if (eventStore != null)
+            eventStore.append(currencyIndex, unscaledValue, scale);
+
+        beginWrite();
+        try {
+            balanceFor(currencyIndex).add(unscaledValue, scale);
+        } finally {
+            endWrite();
+        }
+        PaymentWindows windows = this.windows;
+        if (windows != null)
+            windows.add(currencyIndex, unscaledValue, scale);
+        metrics.paymentsRegistered(1);
+        metrics.recordRegister(start);
+    }
+
+    /**
+     * Registers all the payments of the batch with one balance update per currency. The batch is not cleared.
+     *
+     * @param batch
+     */
+    public void registerPayments(PaymentBatch batch) {
+        if (batch == null)
+            throw new IllegalArgumentException("Batch cannot be null");
+
+        long start = metrics.start();
+        PaymentJournal journal = this.journal;
+        if (journal != null)
+            journal.append(batch);
+        PaymentEventStore eventStore = this.eventStore;
+        if (eventStore != null)
+            eventStore.append(batch);
+
+        //The whole batch is one update, a snapshot has either all its currencies or none
+        batch.getTotals().applyTo(this);
+        PaymentWindows windows = this.windows;
+        if (windows != null)
+            windows.addTotals(batch.getTotals());
+        metrics.paymentsRegistered(batch.size());
+        metrics.recordBatch(start);
+    }
+
+    /**
+     * Registers all the payments with one balance update per currency.
+     *
+     * @param payments
+     */
+    public void registerPayments(Collection<MoneyAmount> payments) {
+        if (payments == null)
+            throw new IllegalArgumentException("Payments cannot be null");
+        if (payments.isEmpty())
+            return;
+
+        PaymentBatch batch = new PaymentBatch(payments.size());
+        for (MoneyAmount payment : payments)
+            batch.add(payment);
+
+        registerPayments(batch);
+    }
+
+    void registerTotals(PaymentTotals totals) {
+        beginWrite();
+        try {
+            totals.registerEach(this);
+        } finally {
+            endWrite();
         }
     }
 
+    /**
+     * Only called from registerTotals, which makes it part of an update
+     */
+    void registerTotal(int currencyIndex, long minorUnits, long count, int valueScale, BigDecimal remainder) {
+        balanceFor(currencyIndex).addTotal(minorUnits, count, valueScale, remainder);
+    }
+
+    /**
+     * @param currency
+     * @param window
+     * @return total of the payments registered in the window ending now, null if the service has no windows or the
+     * currency had no payment yet
+     */
+    public WindowTotal getWindowTotal(Currency currency, TimeWindow window) {
+        if (currency == null)
+            throw new IllegalArgumentException("Currency cannot be null");
+
+        PaymentWindows windows = this.windows;
+        return windows != null ? windows.getTotal(Currencies.indexOf(currency), window) : null;
+    }
+
+    /**
+     * Starts adding the payments registered through registerPayment and registerPayments to the windows. Totals of
+     * files, replays and recovered journals are not added, they didn't arrive now.
+     *
+     * @param windows null to stop
+     */
+    public void setWindows(PaymentWindows windows) {
+        this.windows = windows;
+    }
+
+    public PaymentWindows getWindows() {
+        return windows;
+    }
+
+    /**
+     * @return rounding and precision of the exchanges, inverse rates and balances of this service
+     */
+    public PrecisionPolicy getPrecisionPolicy() {
+        return precisionPolicy;
+    }
+
+    /**
+     * @return counters and latencies of this service, also to be updated by its callers (parse failures, printing)
+     */
+    public TrackerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param currencyIndex
+     * @return balance of the currency with the given Currencies index, null if it had no payment yet
+     */
+    public CurrencyBalance getBalance(int currencyIndex) {
+        return balances.get(currencyIndex);
+    }
+
+    /**
+     * @return all the balances of one snapshot, the list can't be modified
+     */
     public List<MoneyAmount> getMoneyAmounts() {
-        return new ArrayList<>(moneyAmountByCurrency.values());
+        return getSnapshot().getMoneyAmounts();
     }
 
+    /**
+     * Returns the balances of all the currencies at one moment, with the number of payments they include.
+     *
+     * The balances are read while no update is in progress: the reader checks that no update started since the
+     * last one that finished before the balances were read, and reads them again if one did. Writers don't wait
+     * for readers, unless updates are so frequent that a reader fails SNAPSHOT_ATTEMPTS times, then new updates
+     * wait until it reads the balances once more. The snapshot is cached and returned again until the balances
+     * change.
+     *
+     * @return
+     */
+    public BalanceSnapshot getSnapshot() {
+        BalanceSnapshot current = snapshot;
+        if (current != null && isUnchangedSince(current))
+            return current;
 
-}
+        synchronized (snapshotLock) {
+            current = snapshot;
+            if (current != null && isUnchangedSince(current))
+                return current;
 
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    if (attempt > SNAPSHOT_ATTEMPTS)
+                        snapshotPending = true;
+
+                    long finished = writesFinished.sum();
+                    current = readBalances(finished);
+                    if (writesStarted.sum() == finished) {
+                        snapshot = current;
+                        return current;
+                    }
+                }
+            } finally {
+                snapshotPending = false;
+            }
+        }
+    }
+
+    private boolean isUnchangedSince(BalanceSnapshot snapshot) {
+        //Finished first: if no update started after that, none was in progress either
+        return writesFinished.sum() == snapshot.getSequence() && writesStarted.sum() == snapshot.getSequence();
+    }
+
+    private BalanceSnapshot readBalances(long sequence) {
+        MoneyAmount[] amounts = new MoneyAmount[Currencies.count()];
+        long[] counts = new long[Currencies.count()];
+        for (int i = 0; i < amounts.length; i++) {
+            CurrencyBalance balance = balances.get(i);
+            if (balance != null) {
+                counts[i] = balance.getPaymentCount();
+                amounts[i] = balance.toMoneyAmount();
+            }
+        }
+        return new BalanceSnapshot(sequence, amounts, counts);
+    }
+
+    private void beginWrite() {
+        if (snapshotPending) {
+            //Waits for the reader that holds the lock
+            synchronized (snapshotLock) {
+            }
+        }
+        writesStarted.increment();
+    }
+
+    private void endWrite() {
+        writesFinished.increment();
+    }
+
+    private CurrencyBalance balanceFor(int currencyIndex) {
+        CurrencyBalance balance = balances.get(currencyIndex);
+        if (balance == null) {
+            balances.compareAndSet(currencyIndex, null, new CurrencyBalance(Currencies.currency(currencyIndex),
+                    precisionPolicy));
+            balance = balances.get(currencyIndex);
+        }
+
+        return balance;
+    }
+
+    /**
+     * Holder of the logger, so that logging is set up on the first warning rather than with the service
+     */
+    private static final class Log {
+        private static final Logger logger = LoggerFactory.getLogger(MoneyService.class);
+    }
+}
@@ -0,0 +1,122 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable batch of payments for MoneyService.registerPayments.
+ *
+ * The payments are kept in primitive columns (for the journal) and pre-aggregated per currency as they are added,
+ * so registering the batch touches the shared balances only once per currency. Not thread-safe, every producer
+ * should fill its own batch.
+ */
+public class PaymentBatch {
+    private final int capacity;
+    private final int[] currencyIndexes;
+    private final long[] unscaledValues;
+    private final int[] scales;
+    private int size;
+    /**
+     * Payments that don't fit into the columns
+     */
+    private final List<MoneyAmount> bigPayments = new ArrayList<>();
+    private final PaymentTotals totals = new PaymentTotals();
+
+    public PaymentBatch(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        this.capacity = capacity;
+        this.currencyIndexes = new int[capacity];
+        this.unscaledValues = new long[capacity];
+        this.scales = new int[capacity];
+    }
+
+    /**
+     * Adds payment of unscaledValue * 10^-scale in the currency with the given Currencies index.
+     *
+     * @param currencyIndex
+     * @param unscaledValue
+     * @param scale
+     */
+    public void add(int currencyIndex, long unscaledValue, int scale) {
+        if (isFull())
+            throw new IllegalStateException("The batch is full");
+
+        currencyIndexes[size] = currencyIndex;
+        unscaledValues[size] = unscaledValue;
+        scales[size] = scale;
+        size++;
+        totals.add(currencyIndex, unscaledValue, scale);
+    }
+
+    public void add(MoneyAmount payment) {
+        if (payment == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        BigDecimal value = payment.getValue();
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < Long.SIZE) {
+            add(Currencies.indexOf(payment.getCurrency()), unscaled.longValue(), value.scale());
+        } else {
+            if (isFull())
+                throw new IllegalStateException("The batch is full");
+
+            bigPayments.add(payment);
+            totals.add(payment);
+        }
+    }
+
+    /**
+     * @return number of payments in the batch
+     */
+    public int size() {
+        return size + bigPayments.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean isFull() {
+        return size() >= capacity;
+    }
+
+    /**
+     * Removes all the payments, so the batch can be filled again.
+     */
+    public void clear() {
+        size = 0;
+        bigPayments.clear();
+        totals.clear();
+    }
+
+    int columnSize() {
+        return size;
+    }
+
+    int currencyIndex(int i) {
+        return currencyIndexes[i];
+    }
+
+    long unscaledValue(int i) {
+        return unscaledValues[i];
+    }
+
+    int scale(int i) {
+        return scales[i];
+    }
+
+    List<MoneyAmount> getBigPayments() {
+        return bigPayments;
+    }
+
+    PaymentTotals getTotals() {
+        return totals;
+    }
+}
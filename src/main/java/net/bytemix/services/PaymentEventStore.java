@@ -0,0 +1,460 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.FixedPointMoney;
+import net.bytemix.domain.MoneyAmount;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only store of the individual payments, for queries by currency and time range.
+ *
+ * Payments are kept off-heap in chunks of direct memory, each chunk with three columns: arrival time, currency and
+ * amount in minor units (see FixedPointMoney). Arrival times never decrease, so the chunks are ordered by time and
+ * every chunk has a sparse index with the time of every INDEX_INTERVAL-th record, which limits a range scan to the
+ * records in the range. Every chunk also keeps count, sum, min and max per currency: chunks without the queried
+ * currency are skipped, and chunks that lie completely inside the queried range are aggregated without reading a
+ * single record.
+ *
+ * Retention: when a new chunk is needed, the chunks older than the retention time are dropped, and so is the
+ * oldest chunk if the store already has the maximum number of chunks. The memory is bounded by the maximum number of
+ * chunks. Dropped chunks are reused.
+ *
+ * Payments that can't be expressed as FixedPointMoney (more fraction digits than the currency uses, or too large)
+ * are not stored, only counted.
+ *
+ * Locking: only the newest chunk is written to, under its own monitor, so writers wait for each other just for the
+ * few puts of a record and queries of the older chunks don't block them. The read-write lock guards the list of
+ * chunks: appends and queries share its read lock, adding or dropping a chunk takes its write lock.
+ */
+public class PaymentEventStore {
+    /**
+     * Used instead of a currency index to scan payments in all the currencies
+     */
+    public static final int ALL_CURRENCIES = -1;
+    private static final int INDEX_INTERVAL = 256;
+    private static final int RECORD_SIZE = Long.BYTES + Short.BYTES + Long.BYTES;
+
+    private final Clock clock;
+    private final int chunkCapacity;
+    private final int maxChunks;
+    private final long retentionMillis;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private final LongAdder skipped = new LongAdder();
+    private Chunk spare;
+    /**
+     * Guarded by the monitor of the newest chunk, or by the write lock
+     */
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * @param clock source of the arrival times
+     * @param chunkCapacity number of payments per chunk
+     * @param maxChunks maximum number of chunks kept in memory
+     * @param retentionMillis how long the payments are kept at least (unless maxChunks is reached)
+     */
+    public PaymentEventStore(Clock clock, int chunkCapacity, int maxChunks, long retentionMillis) {
+        if (clock == null)
+            throw new IllegalArgumentException("Clock cannot be null");
+        if (chunkCapacity < INDEX_INTERVAL || maxChunks <= 0 || retentionMillis <= 0)
+            throw new IllegalArgumentException("Chunk capacity must be at least " + INDEX_INTERVAL
+                    + ", number of chunks and retention must be positive");
+        if ((long) chunkCapacity * RECORD_SIZE > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Chunk capacity is too big");
+
+        this.clock = clock;
+        this.chunkCapacity = chunkCapacity;
+        this.maxChunks = maxChunks;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Stores payment of unscaledValue * 10^-scale in the currency with the given Currencies index, arrived now.
+     *
+     * @param currencyIndex
+     * @param unscaledValue
+     * @param scale
+     */
+    public void append(int currencyIndex, long unscaledValue, int scale) {
+        long minorUnits;
+        try {
+            minorUnits = toMinorUnits(unscaledValue, scale, Currencies.scale(currencyIndex));
+        } catch (ArithmeticException e) {
+            skipped.increment();
+            return;
+        }
+
+        while (true) {
+            Chunk chunk;
+            lock.readLock().lock();
+            try {
+                chunk = chunks.peekLast();
+                if (chunk != null) {
+                    synchronized (chunk) {
+                        if (chunk.size < chunkCapacity) {
+                            chunk.append(now(), currencyIndex, minorUnits);
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            addChunk(chunk);
+        }
+    }
+
+    public void append(MoneyAmount payment) {
+        if (payment == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        BigDecimal value = payment.getValue();
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < Long.SIZE)
+            append(Currencies.indexOf(payment.getCurrency()), unscaled.longValue(), value.scale());
+        else
+            skipped.increment();
+    }
+
+    /**
+     * Stores all the payments of the batch, taking the lock of the newest chunk once per chunk they are stored in.
+     * The payments stored in one chunk have a single arrival time.
+     *
+     * @param batch
+     */
+    public void append(PaymentBatch batch) {
+        int i = 0;
+        while (i < batch.columnSize()) {
+            Chunk chunk;
+            lock.readLock().lock();
+            try {
+                chunk = chunks.peekLast();
+                if (chunk != null) {
+                    synchronized (chunk) {
+                        long timestamp = now();
+                        for (; i < batch.columnSize() && chunk.size < chunkCapacity; i++)
+                            appendTo(chunk, timestamp, batch.currencyIndex(i), batch.unscaledValue(i), batch.scale(i));
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (i < batch.columnSize())
+                addChunk(chunk);
+        }
+        skipped.add(batch.getBigPayments().size());
+    }
+
+    /**
+     * @param currencyIndex
+     * @param fromMillis start of the range, inclusive
+     * @param toMillis end of the range, inclusive
+     * @return count, sum, min and max of the payments in the currency that arrived in the range
+     */
+    public EventStats aggregate(int currencyIndex, long fromMillis, long toMillis) {
+        if (currencyIndex < 0 || currencyIndex >= Currencies.count())
+            throw new IllegalArgumentException("Unknown currency index " + currencyIndex);
+
+        Aggregation aggregation = new Aggregation();
+        lock.readLock().lock();
+        try {
+            for (Chunk chunk : chunks) {
+                synchronized (chunk) {
+                    if (chunk.size == 0 || chunk.maxTime < fromMillis || chunk.minTime > toMillis
+                            || chunk.counts[currencyIndex] == 0)
+                        continue;
+
+                    if (fromMillis <= chunk.minTime && chunk.maxTime <= toMillis && !chunk.overflows[currencyIndex]) {
+                        aggregation.add(chunk.counts[currencyIndex], chunk.sums[currencyIndex],
+                                chunk.mins[currencyIndex], chunk.maxs[currencyIndex]);
+                        continue;
+                    }
+
+                    int end = chunk.upperBound(toMillis);
+                    for (int i = chunk.lowerBound(fromMillis); i < end; i++) {
+                        if (chunk.currency(i) == currencyIndex) {
+                            long amount = chunk.amount(i);
+                            aggregation.add(1, amount, amount, amount);
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return aggregation.toStats(currencyIndex);
+    }
+
+    /**
+     * Passes all the payments in the currency that arrived in the range to the visitor, oldest first. Appends wait
+     * while the visitor gets the payments of the newest chunk, and no chunk is added or dropped until the scan is done.
+     *
+     * @param currencyIndex Currencies index, or ALL_CURRENCIES
+     * @param fromMillis start of the range, inclusive
+     * @param toMillis end of the range, inclusive
+     * @param visitor
+     */
+    public void scan(int currencyIndex, long fromMillis, long toMillis, PaymentEventVisitor visitor) {
+        if (visitor == null)
+            throw new IllegalArgumentException("Visitor cannot be null");
+        if (currencyIndex != ALL_CURRENCIES && (currencyIndex < 0 || currencyIndex >= Currencies.count()))
+            throw new IllegalArgumentException("Unknown currency index " + currencyIndex);
+
+        lock.readLock().lock();
+        try {
+            for (Chunk chunk : chunks) {
+                synchronized (chunk) {
+                    if (chunk.size == 0 || chunk.maxTime < fromMillis || chunk.minTime > toMillis
+                            || (currencyIndex != ALL_CURRENCIES && chunk.counts[currencyIndex] == 0))
+                        continue;
+
+                    int end = chunk.upperBound(toMillis);
+                    for (int i = chunk.lowerBound(fromMillis); i < end; i++) {
+                        int currency = chunk.currency(i);
+                        if (currencyIndex == ALL_CURRENCIES || currency == currencyIndex)
+                            visitor.visit(chunk.time(i), currency, chunk.amount(i));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of stored payments
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (Chunk chunk : chunks) {
+                synchronized (chunk) {
+                    size += chunk.size;
+                }
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of payments that couldn't be stored
+     */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    private long now() {
+        lastTimestamp = Math.max(lastTimestamp, clock.millis());
+        return lastTimestamp;
+    }
+
+    /**
+     * Called with the monitor of the chunk
+     */
+    private void appendTo(Chunk chunk, long timestamp, int currencyIndex, long unscaledValue, int scale) {
+        try {
+            chunk.append(timestamp, currencyIndex, toMinorUnits(unscaledValue, scale, Currencies.scale(currencyIndex)));
+        } catch (ArithmeticException e) {
+            skipped.increment();
+        }
+    }
+
+    /**
+     * @param full newest chunk seen by the caller, null if there was none
+     */
+    private void addChunk(Chunk full) {
+        lock.writeLock().lock();
+        try {
+            //Another writer may have added it already
+            if (chunks.peekLast() != full)
+                return;
+
+            long now = now();
+            while (!chunks.isEmpty()
+                    && (chunks.size() >= maxChunks || chunks.peekFirst().maxTime < now - retentionMillis))
+                spare = chunks.pollFirst();
+
+            Chunk chunk = spare != null ? spare : new Chunk(chunkCapacity);
+            spare = null;
+            chunk.clear();
+            chunks.addLast(chunk);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @throws ArithmeticException if the value can't be expressed in minor units that fit into a long
+     */
+    private static long toMinorUnits(long unscaledValue, int scale, int currencyScale) {
+        if (scale <= currencyScale)
+            return FixedPointMoney.rescale(unscaledValue, scale, currencyScale);
+
+        //Trailing zeros, e.g. USD 1.250
+        for (int i = currencyScale; i < scale; i++) {
+            if (unscaledValue % 10 != 0)
+                throw new ArithmeticException("More fraction digits than the currency uses");
+            unscaledValue /= 10;
+        }
+        return unscaledValue;
+    }
+
+    private static final class Chunk {
+        private final int capacity;
+        /**
+         * Columns: arrival times at 0, currency indexes after them, amounts in minor units at the end
+         */
+        private final ByteBuffer data;
+        private final int currencyOffset;
+        private final int amountOffset;
+        private final long[] index;
+        private final long[] counts = new long[Currencies.count()];
+        private final long[] sums = new long[Currencies.count()];
+        private final long[] mins = new long[Currencies.count()];
+        private final long[] maxs = new long[Currencies.count()];
+        /**
+         * Currencies whose sum doesn't fit into a long, their records have to be read
+         */
+        private final boolean[] overflows = new boolean[Currencies.count()];
+        private int size;
+        private long minTime;
+        private long maxTime;
+
+        private Chunk(int capacity) {
+            this.capacity = capacity;
+            this.data = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+            this.currencyOffset = capacity * Long.BYTES;
+            this.amountOffset = currencyOffset + capacity * Short.BYTES;
+            this.index = new long[(capacity + INDEX_INTERVAL - 1) / INDEX_INTERVAL];
+        }
+
+        private void clear() {
+            size = 0;
+            Arrays.fill(counts, 0);
+            Arrays.fill(sums, 0);
+            Arrays.fill(overflows, false);
+        }
+
+        private void append(long timestamp, int currencyIndex, long minorUnits) {
+            data.putLong(size * Long.BYTES, timestamp);
+            data.putShort(currencyOffset + size * Short.BYTES, (short) currencyIndex);
+            data.putLong(amountOffset + size * Long.BYTES, minorUnits);
+            if (size % INDEX_INTERVAL == 0)
+                index[size / INDEX_INTERVAL] = timestamp;
+            if (size == 0)
+                minTime = timestamp;
+            maxTime = timestamp;
+            size++;
+
+            if (counts[currencyIndex]++ == 0) {
+                mins[currencyIndex] = minorUnits;
+                maxs[currencyIndex] = minorUnits;
+            } else {
+                mins[currencyIndex] = Math.min(mins[currencyIndex], minorUnits);
+                maxs[currencyIndex] = Math.max(maxs[currencyIndex], minorUnits);
+            }
+            long sum = sums[currencyIndex] + minorUnits;
+            if (((sums[currencyIndex] ^ sum) & (minorUnits ^ sum)) < 0)
+                overflows[currencyIndex] = true;
+            sums[currencyIndex] = sum;
+        }
+
+        private long time(int i) {
+            return data.getLong(i * Long.BYTES);
+        }
+
+        private int currency(int i) {
+            return data.getShort(currencyOffset + i * Short.BYTES);
+        }
+
+        private long amount(int i) {
+            return data.getLong(amountOffset + i * Long.BYTES);
+        }
+
+        /**
+         * @return position of the first record that arrived at fromMillis or later
+         */
+        private int lowerBound(long fromMillis) {
+            if (fromMillis <= minTime)
+                return 0;
+
+            //Last indexed record before fromMillis, the first record at fromMillis can't be before it
+            int entries = (size + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            int low = 0;
+            int high = entries - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (index[middle] < fromMillis)
+                    low = middle;
+                else
+                    high = middle - 1;
+            }
+
+            int i = low * INDEX_INTERVAL;
+            while (i < size && time(i) < fromMillis)
+                i++;
+            return i;
+        }
+
+        /**
+         * @return position after the last record that arrived at toMillis or earlier
+         */
+        private int upperBound(long toMillis) {
+            if (toMillis >= maxTime)
+                return size;
+
+            return toMillis == Long.MAX_VALUE ? size : lowerBound(toMillis + 1);
+        }
+    }
+
+    /**
+     * Running count, sum, min and max of a query
+     */
+    private static final class Aggregation {
+        private long count;
+        private long sum;
+        private BigInteger bigSum;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        private void add(long count, long sum, long min, long max) {
+            this.count += count;
+            long total = this.sum + sum;
+            if (((this.sum ^ total) & (sum ^ total)) < 0) {
+                BigInteger current = bigSum != null ? bigSum : BigInteger.ZERO;
+                bigSum = current.add(BigInteger.valueOf(this.sum)).add(BigInteger.valueOf(sum));
+                total = 0;
+            }
+            this.sum = total;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+        }
+
+        private EventStats toStats(int currencyIndex) {
+            Currency currency = Currencies.currency(currencyIndex);
+            int scale = Currencies.scale(currencyIndex);
+            BigInteger total = BigInteger.valueOf(sum);
+            if (bigSum != null)
+                total = total.add(bigSum);
+
+            if (count == 0)
+                return new EventStats(0, new MoneyAmount(BigDecimal.ZERO, currency), null, null);
+            return new EventStats(count, new MoneyAmount(new BigDecimal(total, scale), currency),
+                    new MoneyAmount(BigDecimal.valueOf(min, scale), currency),
+                    new MoneyAmount(BigDecimal.valueOf(max, scale), currency));
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package net.bytemix.services;
+
+/**
+ * Receives the payments of a PaymentEventStore scan.
+ */
+public interface PaymentEventVisitor {
+    /**
+     * @param timestamp arrival time in milliseconds since the epoch
+     * @param currencyIndex Currencies index of the payment currency
+     * @param minorUnits amount in the minor units of the currency, see Currencies.scale
+     */
+    void visit(long timestamp, int currencyIndex, long minorUnits);
+}
@@ -0,0 +1,163 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.MoneyParser;
+import net.bytemix.domain.ParseStatus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Reads payment files (one "CURRENCY VALUE" per line) in parallel.
+ *
+ * The file is split into chunks that end on line boundaries. Each chunk is memory-mapped and parsed by a worker of
+ * the common fork/join pool into that worker's own PaymentTotals, and the partial totals are merged at the end. Only
+ * one chunk per worker is mapped at a time, so the memory used doesn't depend on the size of the file.
+ *
+ * Bad lines are counted, and recorded in the reject log with their byte offset in the file if there is one. Line
+ * numbers would need the lines of all the previous chunks to be counted first.
+ */
+public class PaymentFileReader {
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private final int chunkSize;
+    private final RejectLog rejects;
+
+    public PaymentFileReader() {
+        this(DEFAULT_CHUNK_SIZE, null);
+    }
+
+    public PaymentFileReader(int chunkSize) {
+        this(chunkSize, null);
+    }
+
+    /**
+     * @param chunkSize
+     * @param rejects null if the bad lines are only counted
+     */
+    public PaymentFileReader(int chunkSize, RejectLog rejects) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive");
+
+        this.chunkSize = chunkSize;
+        this.rejects = rejects;
+    }
+
+    /**
+     * @param rejects null if the bad lines are only counted
+     */
+    public PaymentFileReader(RejectLog rejects) {
+        this(DEFAULT_CHUNK_SIZE, rejects);
+    }
+
+    /**
+     * @param file
+     * @return sums of all the payments in the file, including the count of bad lines
+     */
+    public PaymentTotals aggregate(Path file) {
+        if (file == null)
+            throw new IllegalArgumentException("File cannot be null");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] boundaries = chunkBoundaries(channel);
+            String source = file.toString();
+
+            return IntStream.range(0, boundaries.length - 1)
+                    .parallel()
+                    .collect(PaymentTotals::new,
+                            (totals, chunk) -> aggregateChunk(channel, boundaries[chunk], boundaries[chunk + 1],
+                                    totals, source),
+                            PaymentTotals::merge);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read file", e);
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException("Couldn't read file", e.getCause());
+        }
+    }
+
+    private void aggregateChunk(FileChannel channel, long start, long end, PaymentTotals totals, String source) {
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        MoneyParser parser = new MoneyParser();
+        int lineStart = 0;
+        int limit = buffer.limit();
+        for (int position = 0; position <= limit; position++) {
+            if (position < limit && buffer.get(position) != '\n')
+                continue;
+            //The last line of the file doesn't have to end with a line separator
+            if (position == limit && lineStart == limit)
+                break;
+
+            int lineEnd = position;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r')
+                lineEnd--;
+
+            ParseStatus status = parser.parse(buffer, lineStart, lineEnd);
+            if (status == ParseStatus.OK) {
+                totals.add(parser.getCurrencyIndex(), parser.getUnscaledValue(), parser.getScale());
+            } else if (status == ParseStatus.OUT_OF_RANGE) {
+                totals.add(parser.toMoneyAmount());
+            } else {
+                totals.reject();
+                if (rejects != null)
+                    reject(source, start + lineStart, status, buffer, lineStart, lineEnd);
+            }
+            lineStart = position + 1;
+        }
+    }
+
+    private void reject(String source, long offset, ParseStatus status, ByteBuffer buffer, int start, int end) {
+        //Only the part the reject log keeps is copied out of the mapped buffer
+        byte[] line = new byte[Math.min(end - start, RejectLog.MAX_INPUT + 1)];
+        for (int i = 0; i < line.length; i++)
+            line[i] = buffer.get(start + i);
+
+        rejects.reject(source, offset, status, line, 0, line.length);
+    }
+
+    /**
+     * @param channel
+     * @return offsets of the chunk starts, followed by the size of the file
+     * @throws IOException
+     */
+    private long[] chunkBoundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long[] boundaries = new long[(int) (size / chunkSize) + 2];
+        int count = 1;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+
+        while (boundaries[count - 1] < size) {
+            long end = nextLineStart(channel, Math.min(boundaries[count - 1] + chunkSize, size), size, probe);
+            if (count == boundaries.length)
+                boundaries = Arrays.copyOf(boundaries, count * 2);
+            boundaries[count++] = end;
+        }
+        return Arrays.copyOf(boundaries, count);
+    }
+
+    private long nextLineStart(FileChannel channel, long position, long size, ByteBuffer probe) throws IOException {
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0)
+                return size;
+
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+}
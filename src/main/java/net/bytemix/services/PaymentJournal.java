@@ -0,0 +1,583 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary write-ahead log of registered payments, with periodic snapshots of the totals.
+ *
+ * Payments are appended into an in-memory buffer. A single writer thread takes everything that was appended since
+ * its last write, writes it to the current segment file as one checksummed frame and fsyncs it, so the cost of
+ * fsync is shared by all the payments that arrived in the meantime (group commit). Appending doesn't wait for the
+ * fsync; callers that need durability can wait with awaitDurable.
+ *
+ * The writer also keeps the totals of everything it has written. Every snapshotEveryRecords payments it starts a
+ * new segment and writes these totals as a snapshot, which replaces all the older segments. Recovery loads the
+ * latest snapshot and replays only the segments written after it, so it takes time proportional to the snapshot
+ * interval, not to the age of the journal. A torn frame at the end of the log (crash during a write) is detected
+ * by its checksum and dropped. The directory is fsynced after every file that is created, moved or deleted, so the
+ * files a recovery finds are the ones that were there before the crash.
+ *
+ * Files in the directory:
+ * journal-ID.log - frames of [int payload length][int CRC32 of payload][payload], payload is a sequence of records
+ * snapshot-ID.bin - totals and payment counts of all the segments with a smaller ID
+ * journal-ID.log.corrupted - segment that followed a corrupted one during a recovery, not replayed anymore
+ */
+public class PaymentJournal implements Closeable {
+    /**
+     * Version 1 snapshots have no payment counts, every currency is restored with a count of 1
+     */
+    private static final int SNAPSHOT_MAGIC_V1 = 0x50545331;
+    private static final int SNAPSHOT_MAGIC = 0x50545332;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String QUARANTINE_SUFFIX = ".corrupted";
+    private static final int FRAME_HEADER = 8;
+    /**
+     * Record is [3 bytes of currency code][byte scale][long unscaled value]. Scale of Byte.MIN_VALUE marks a record
+     * for a value that doesn't fit this layout: [3 bytes of currency code][MIN_VALUE][int scale][int length]
+     * [unscaled value as big-endian two's complement bytes]
+     */
+    private static final int RECORD_SIZE = 12;
+    private static final byte BIG_VALUE = Byte.MIN_VALUE;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final long DEFAULT_SNAPSHOT_EVERY = 1000000;
+
+    private Logger logger = LoggerFactory.getLogger(PaymentJournal.class);
+    private final Path directory;
+    private final long snapshotEveryRecords;
+    /**
+     * Totals of everything in the journal. Only used by the writer thread once the journal is open.
+     */
+    private final PaymentTotals totals = new PaymentTotals();
+    private final PaymentTotals recovered = new PaymentTotals();
+
+    private final Object lock = new Object();
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean closed;
+    private boolean writerWaiting;
+    private IOException failure;
+
+    private FileChannel segment;
+    private long segmentId;
+    private long recordsSinceSnapshot;
+    private final Thread writer;
+
+    public PaymentJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SNAPSHOT_EVERY);
+    }
+
+    /**
+     * Opens the journal in the directory and recovers the totals it contains, see getRecoveredTotals.
+     *
+     * @param directory
+     * @param snapshotEveryRecords number of payments between two snapshots
+     * @throws IOException
+     */
+    public PaymentJournal(Path directory, long snapshotEveryRecords) throws IOException {
+        if (directory == null)
+            throw new IllegalArgumentException("Directory cannot be null");
+        if (snapshotEveryRecords <= 0)
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+
+        this.directory = directory;
+        this.snapshotEveryRecords = snapshotEveryRecords;
+        this.pending = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        this.writing = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+
+        Files.createDirectories(directory);
+        recover();
+        recovered.merge(totals);
+        openSegment(segmentId);
+
+        writer = new Thread(this::writeLoop, "payment-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return totals of all the payments in the journal when it was opened
+     */
+    public PaymentTotals getRecoveredTotals() {
+        return recovered;
+    }
+
+    /**
+     * Appends payment of unscaledValue * 10^-scale in the currency with the given Currencies index.
+     *
+     * @param currencyIndex
+     * @param unscaledValue
+     * @param scale
+     * @return sequence number of the payment, see awaitDurable
+     */
+    public long append(int currencyIndex, long unscaledValue, int scale) {
+        if (scale <= BIG_VALUE || scale > Byte.MAX_VALUE)
+            return append(new MoneyAmount(BigDecimal.valueOf(unscaledValue, scale), Currencies.currency(currencyIndex)));
+
+        String code = Currencies.currency(currencyIndex).getCurrencyCode();
+        synchronized (lock) {
+            ByteBuffer buffer = reserve(RECORD_SIZE);
+            putCode(buffer, code);
+            buffer.put((byte) scale);
+            buffer.putLong(unscaledValue);
+            return appended();
+        }
+    }
+
+    /**
+     * @param payment
+     * @return sequence number of the payment, see awaitDurable
+     */
+    public long append(MoneyAmount payment) {
+        if (payment == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        BigDecimal value = payment.getValue();
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < Long.SIZE && value.scale() > BIG_VALUE && value.scale() <= Byte.MAX_VALUE)
+            return append(Currencies.indexOf(payment.getCurrency()), unscaled.longValue(), value.scale());
+
+        byte[] bytes = unscaled.toByteArray();
+        synchronized (lock) {
+            ByteBuffer buffer = reserve(RECORD_SIZE + bytes.length);
+            putCode(buffer, payment.getCurrency().getCurrencyCode());
+            buffer.put(BIG_VALUE);
+            buffer.putInt(value.scale());
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            return appended();
+        }
+    }
+
+    /**
+     * Appends all the payments of the batch, taking the journal lock only once.
+     *
+     * @param batch
+     * @return sequence number of the last payment of the batch, see awaitDurable
+     */
+    public long append(PaymentBatch batch) {
+        if (batch == null)
+            throw new IllegalArgumentException("Batch cannot be null");
+
+        synchronized (lock) {
+            long sequence = appendedSequence;
+            for (int i = 0; i < batch.columnSize(); i++)
+                sequence = append(batch.currencyIndex(i), batch.unscaledValue(i), batch.scale(i));
+            for (MoneyAmount payment : batch.getBigPayments())
+                sequence = append(payment);
+
+            return sequence;
+        }
+    }
+
+    /**
+     * @return sequence number of the last appended payment
+     */
+    public long getAppendedSequence() {
+        synchronized (lock) {
+            return appendedSequence;
+        }
+    }
+
+    /**
+     * Blocks until the payment with the given sequence number is fsynced.
+     *
+     * @param sequence
+     * @throws InterruptedException
+     * @throws IOException if the journal couldn't be written
+     */
+    public void awaitDurable(long sequence) throws InterruptedException, IOException {
+        synchronized (lock) {
+            while (durableSequence < sequence && failure == null && !(closed && !writer.isAlive()))
+                lock.wait();
+
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * Writes everything that was appended, writes a final snapshot and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private long appended() {
+        if (writerWaiting)
+            lock.notifyAll();
+
+        return ++appendedSequence;
+    }
+
+    private ByteBuffer reserve(int size) {
+        while (true) {
+            if (failure != null)
+                throw new IllegalStateException("The payment journal couldn't be written", failure);
+            if (closed)
+                throw new IllegalStateException("The payment journal is closed");
+
+            if (pending.remaining() >= size)
+                return pending;
+            if (pending.position() == 0) {
+                pending = ByteBuffer.allocate(size);
+                return pending;
+            }
+
+            //Backpressure, wait until the writer takes the pending records
+            lock.notifyAll();
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the payment journal", e);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer batch;
+                long sequence;
+                boolean last;
+                synchronized (lock) {
+                    while (pending.position() == 0 && !closed) {
+                        writerWaiting = true;
+                        lock.wait();
+                        writerWaiting = false;
+                    }
+
+                    batch = pending;
+                    pending = writing;
+                    pending.clear();
+                    writing = batch;
+                    sequence = appendedSequence;
+                    last = closed;
+                    lock.notifyAll();
+                }
+
+                batch.flip();
+                if (batch.hasRemaining()) {
+                    writeFrame(batch);
+                    segment.force(false);
+                    batch.rewind();
+                    recordsSinceSnapshot += readRecords(batch, totals);
+                }
+
+                synchronized (lock) {
+                    durableSequence = sequence;
+                    lock.notifyAll();
+                }
+
+                if (recordsSinceSnapshot >= snapshotEveryRecords || (last && recordsSinceSnapshot > 0))
+                    snapshot();
+                if (last)
+                    break;
+            }
+            segment.close();
+        } catch (IOException e) {
+            logger.error("Writing the payment journal failed", e);
+            synchronized (lock) {
+                failure = e;
+                lock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            logger.error("Payment journal writer interrupted", e);
+            synchronized (lock) {
+                failure = new IOException("Payment journal writer interrupted", e);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeFrame(ByteBuffer payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        payload.rewind();
+
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        header.putInt(payload.remaining());
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        ByteBuffer[] frame = {header, payload};
+        while (payload.hasRemaining())
+            segment.write(frame);
+    }
+
+    /**
+     * Starts a new segment and writes the totals of all the previous ones into a snapshot, which makes them
+     * obsolete.
+     */
+    private void snapshot() throws IOException {
+        segment.close();
+        openSegment(segmentId + 1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<MoneyAmount> amounts = totals.getMoneyAmounts();
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(segmentId);
+        out.writeInt(amounts.size());
+        for (MoneyAmount amount : amounts) {
+            byte[] unscaled = amount.getValue().unscaledValue().toByteArray();
+            out.writeBytes(amount.getCurrency().getCurrencyCode());
+            out.writeLong(totals.getPaymentCount(Currencies.indexOf(amount.getCurrency())));
+            out.writeInt(amount.getValue().scale());
+            out.writeInt(unscaled.length);
+            out.write(unscaled);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Path snapshot = directory.resolve(fileName(SNAPSHOT_PREFIX, segmentId, SNAPSHOT_SUFFIX));
+        Path temporary = directory.resolve(snapshot.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        recordsSinceSnapshot = 0;
+
+        for (long id : fileIds(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (id < segmentId)
+                Files.deleteIfExists(directory.resolve(fileName(SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+        }
+        for (long id : fileIds(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (id < segmentId)
+                Files.deleteIfExists(directory.resolve(fileName(SNAPSHOT_PREFIX, id, SNAPSHOT_SUFFIX)));
+        }
+        syncDirectory();
+        logger.debug("Payment journal snapshot " + segmentId + " written");
+    }
+
+    private void recover() throws IOException {
+        long snapshotId = 0;
+        List<Long> snapshots = fileIds(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        Collections.reverse(snapshots);
+        for (long id : snapshots) {
+            if (loadSnapshot(directory.resolve(fileName(SNAPSHOT_PREFIX, id, SNAPSHOT_SUFFIX)))) {
+                snapshotId = id;
+                break;
+            }
+            logger.warn("Payment journal snapshot " + id + " is corrupted, trying an older one");
+        }
+
+        long lastId = snapshotId;
+        boolean intact = true;
+        for (long id : fileIds(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            lastId = Math.max(lastId, id);
+            if (id < snapshotId)
+                continue;
+
+            Path segment = directory.resolve(fileName(SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+            if (!intact) {
+                //Moved aside, so that the next recovery doesn't replay it after the truncated segment
+                Path quarantined = directory.resolve(segment.getFileName() + QUARANTINE_SUFFIX);
+                logger.warn("Payment journal segment " + id + " follows a corrupted segment, moving it to "
+                        + quarantined);
+                Files.move(segment, quarantined, StandardCopyOption.REPLACE_EXISTING);
+                continue;
+            }
+            intact = replaySegment(segment);
+        }
+        if (!intact)
+            syncDirectory();
+        segmentId = lastId + 1;
+    }
+
+    private boolean loadSnapshot(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length < 4)
+            return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt())
+            return false;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int magic = in.readInt();
+        if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1)
+            return false;
+
+        in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] code = new byte[3];
+            in.readFully(code);
+            long payments = magic == SNAPSHOT_MAGIC ? in.readLong() : 1;
+            int scale = in.readInt();
+            byte[] unscaled = new byte[in.readInt()];
+            in.readFully(unscaled);
+            totals.addTotal(new MoneyAmount(new BigDecimal(new BigInteger(unscaled), scale),
+                    Currency.getInstance(new String(code, StandardCharsets.US_ASCII))), payments);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the segment ends with a corrupted frame, which is then truncated
+     */
+    private boolean replaySegment(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+            while (position < size) {
+                header.clear();
+                if (size - position < FRAME_HEADER || channel.read(header, position) < FRAME_HEADER)
+                    return truncate(channel, file, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length <= 0 || length > size - position - FRAME_HEADER)
+                    return truncate(channel, file, position);
+
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                while (payload.hasRemaining()) {
+                    if (channel.read(payload, position + FRAME_HEADER + payload.position()) <= 0)
+                        return truncate(channel, file, position);
+                }
+                payload.flip();
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                    return truncate(channel, file, position);
+
+                payload.rewind();
+                readRecords(payload, totals);
+                position += FRAME_HEADER + length;
+            }
+        }
+        return true;
+    }
+
+    private boolean truncate(FileChannel channel, Path file, long position) throws IOException {
+        logger.warn("Payment journal " + file + " has a corrupted frame at " + position + ", dropping the rest");
+        channel.truncate(position);
+        return false;
+    }
+
+    /**
+     * @return number of records read
+     */
+    private int readRecords(ByteBuffer payload, PaymentTotals target) {
+        int count = 0;
+        while (payload.hasRemaining()) {
+            int currencyIndex = Currencies.indexOf((char) payload.get(), (char) payload.get(), (char) payload.get());
+            byte scale = payload.get();
+            if (scale != BIG_VALUE) {
+                long unscaled = payload.getLong();
+                if (currencyIndex >= 0)
+                    target.add(currencyIndex, unscaled, scale);
+            } else {
+                int bigScale = payload.getInt();
+                byte[] unscaled = new byte[payload.getInt()];
+                payload.get(unscaled);
+                if (currencyIndex >= 0)
+                    target.add(new MoneyAmount(new BigDecimal(new BigInteger(unscaled), bigScale),
+                            Currencies.currency(currencyIndex)));
+            }
+            if (currencyIndex < 0)
+                logger.warn("Payment journal contains a currency unknown to this JVM, skipping it");
+            count++;
+        }
+        return count;
+    }
+
+    private void openSegment(long id) throws IOException {
+        segmentId = id;
+        segment = FileChannel.open(directory.resolve(fileName(SEGMENT_PREFIX, id, SEGMENT_SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        syncDirectory();
+    }
+
+    /**
+     * Makes the creation, moves and deletions of the files durable, fsyncing the files themselves doesn't
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            //Directories can't be opened on Windows, where the metadata changes are durable without it
+        }
+    }
+
+    private static void putCode(ByteBuffer buffer, String code) {
+        buffer.put((byte) code.charAt(0));
+        buffer.put((byte) code.charAt(1));
+        buffer.put((byte) code.charAt(2));
+    }
+
+    private static String fileName(String prefix, long id, String suffix) {
+        return String.format("%s%020d%s", prefix, id, suffix);
+    }
+
+    /**
+     * @return IDs of the files with the given prefix and suffix, in ascending order
+     */
+    private List<Long> fileIds(String prefix, String suffix) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Unexpected file in the payment journal directory: " + name);
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,137 @@
+package net.bytemix.services;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Re-aggregates many payment files (text or binary, like MoneyService.loadFromFile) into one set of totals, without
+ * changing any MoneyService.
+ *
+ * Every file is a task of one fork/join pool. The readers split their files into chunks with parallel streams, and
+ * a parallel stream started in a fork/join worker runs in that worker's pool, so the chunks of a big file are
+ * stolen by the workers that are done with their small files. A file that can't be read is reported in the result
+ * and the others are still aggregated.
+ */
+public class PaymentReplay {
+    private static final String GLOB_CHARACTERS = "*?[{";
+
+    private final int parallelism;
+
+    public PaymentReplay() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism number of threads reading the files
+     */
+    public PaymentReplay(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Parallelism must be positive");
+
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param location directory (all its files) or glob pattern, e.g. "payments/2017-*.txt" or "payments/**.txt"
+     * @return the matching regular files, sorted by path
+     * @throws IOException
+     */
+    public static List<Path> findFiles(String location) throws IOException {
+        if (location == null)
+            throw new IllegalArgumentException("Location cannot be null");
+
+        Path path = Paths.get(location);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+        }
+
+        //The walk starts in the deepest directory without a glob character
+        int firstGlob = indexOfGlob(location);
+        if (firstGlob < 0)
+            return Files.isRegularFile(path) ? Collections.singletonList(path) : new ArrayList<>();
+
+        int separator = location.lastIndexOf(path.getFileSystem().getSeparator(), firstGlob);
+        Path root = separator < 0 ? Paths.get("") : Paths.get(location.substring(0, separator + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + location);
+        int depth = location.contains("**") ? Integer.MAX_VALUE
+                : path.getNameCount() - (separator < 0 ? 0 : root.getNameCount());
+
+        try (Stream<Path> files = Files.walk(root, depth)) {
+            return files.filter(file -> Files.isRegularFile(file) && matcher.matches(file))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static int indexOfGlob(String location) {
+        for (int i = 0; i < location.length(); i++) {
+            if (GLOB_CHARACTERS.indexOf(location.charAt(i)) >= 0)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param files
+     * @return totals of every file and of all of them, in the order of the files
+     */
+    public ReplayResult replay(List<Path> files) {
+        if (files == null)
+            throw new IllegalArgumentException("Files cannot be null");
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Callable<ReplayResult.FileResult>> tasks = new ArrayList<>();
+            for (Path file : files)
+                tasks.add(() -> replayFile(file));
+
+            List<ReplayResult.FileResult> results = new ArrayList<>();
+            for (Future<ReplayResult.FileResult> result : pool.invokeAll(tasks))
+                results.add(result.get());
+
+            PaymentTotals totals = new PaymentTotals();
+            for (ReplayResult.FileResult result : results) {
+                if (result.getTotals() != null)
+                    totals.merge(result.getTotals());
+            }
+            return new ReplayResult(results, totals, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Replay was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Replay failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static ReplayResult.FileResult replayFile(Path file) {
+        long start = System.nanoTime();
+        try {
+            long size = Files.size(file);
+            PaymentTotals totals = BinaryPaymentFileReader.isBinary(file)
+                    ? new BinaryPaymentFileReader().aggregate(file)
+                    : new PaymentFileReader().aggregate(file);
+            return new ReplayResult.FileResult(file, totals, size, System.nanoTime() - start, null);
+        } catch (IOException | RuntimeException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            return new ReplayResult.FileResult(file, null, 0, System.nanoTime() - start, cause.toString());
+        }
+    }
+}
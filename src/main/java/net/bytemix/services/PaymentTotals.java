@@ -0,0 +1,236 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.FixedPointMoney;
+import net.bytemix.domain.MoneyAmount;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-currency partial sums of payments, owned by a single thread.
+ *
+ * This is the local pre-aggregation step for bulk ingestion: a worker adds any number of payments here without
+ * touching shared state, and the result is applied to the MoneyService with one update per currency (or merged
+ * with the partial sums of other workers first). Not thread-safe.
+ */
+public class PaymentTotals {
+    private final long[] sums = new long[Currencies.count()];
+    private final int[] valueScales = new int[Currencies.count()];
+    private final long[] counts = new long[Currencies.count()];
+    private final BigDecimal[] remainders = new BigDecimal[Currencies.count()];
+    /**
+     * Indexes of the currencies that have at least one payment, in the order they were first seen
+     */
+    private final int[] used = new int[Currencies.count()];
+    private int usedCount;
+    private long rejected;
+
+    public PaymentTotals() {
+        Arrays.fill(valueScales, Integer.MIN_VALUE);
+    }
+
+    public void add(MoneyAmount payment) {
+        if (payment == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        BigDecimal value = payment.getValue();
+        BigInteger unscaled = value.unscaledValue();
+        int currencyIndex = Currencies.indexOf(payment.getCurrency());
+        if (unscaled.bitLength() < Long.SIZE) {
+            add(currencyIndex, unscaled.longValue(), value.scale());
+        } else {
+            touch(currencyIndex, value.scale());
+            addToRemainder(currencyIndex, value);
+        }
+    }
+
+    /**
+     * Adds payment of unscaledValue * 10^-scale in the currency with the given Currencies index.
+     *
+     * @param currencyIndex
+     * @param unscaledValue
+     * @param scale
+     */
+    public void add(int currencyIndex, long unscaledValue, int scale) {
+        addTotal(currencyIndex, unscaledValue, 1, scale);
+    }
+
+    /**
+     * Adds count payments that sum up to unscaledSum * 10^-scale in the currency with the given Currencies index.
+     *
+     * @param currencyIndex
+     * @param unscaledSum
+     * @param count
+     * @param scale
+     */
+    public void addTotal(int currencyIndex, long unscaledSum, long count, int scale) {
+        touch(currencyIndex, scale);
+        counts[currencyIndex] += count - 1;
+
+        int currencyScale = Currencies.scale(currencyIndex);
+        if (scale <= currencyScale) {
+            try {
+                sums[currencyIndex] = Math.addExact(sums[currencyIndex],
+                        FixedPointMoney.rescale(unscaledSum, scale, currencyScale));
+                return;
+            } catch (ArithmeticException e) {
+                //Doesn't fit into a long, handled by the remainder below
+            }
+        }
+        addToRemainder(currencyIndex, BigDecimal.valueOf(unscaledSum, scale));
+    }
+
+    /**
+     * Adds count payments that sum up to the total.
+     *
+     * @param total
+     * @param count
+     */
+    public void addTotal(MoneyAmount total, long count) {
+        if (total == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        BigDecimal value = total.getValue();
+        BigInteger unscaled = value.unscaledValue();
+        int currencyIndex = Currencies.indexOf(total.getCurrency());
+        if (unscaled.bitLength() < Long.SIZE) {
+            addTotal(currencyIndex, unscaled.longValue(), count, value.scale());
+        } else {
+            touch(currencyIndex, value.scale());
+            counts[currencyIndex] += count - 1;
+            addToRemainder(currencyIndex, value);
+        }
+    }
+
+    /**
+     * Counts an input that couldn't be turned into a payment
+     */
+    public void reject() {
+        rejected++;
+    }
+
+    /**
+     * Adds all the sums of the other totals to this one.
+     *
+     * @param other
+     * @return this
+     */
+    public PaymentTotals merge(PaymentTotals other) {
+        for (int i = 0; i < other.usedCount; i++) {
+            int currencyIndex = other.used[i];
+            touch(currencyIndex, other.valueScales[currencyIndex]);
+            counts[currencyIndex] += other.counts[currencyIndex] - 1;
+            try {
+                sums[currencyIndex] = Math.addExact(sums[currencyIndex], other.sums[currencyIndex]);
+            } catch (ArithmeticException e) {
+                addToRemainder(currencyIndex,
+                        BigDecimal.valueOf(other.sums[currencyIndex], Currencies.scale(currencyIndex)));
+            }
+            if (other.remainders[currencyIndex] != null)
+                addToRemainder(currencyIndex, other.remainders[currencyIndex]);
+        }
+        rejected += other.rejected;
+        return this;
+    }
+
+    /**
+     * Adds the sums to the balances of the service, one update per currency, seen by snapshots as a single update.
+     *
+     * @param moneyService
+     */
+    public void applyTo(MoneyService moneyService) {
+        moneyService.registerTotals(this);
+    }
+
+    void registerEach(MoneyService moneyService) {
+        for (int i = 0; i < usedCount; i++) {
+            int currencyIndex = used[i];
+            moneyService.registerTotal(currencyIndex, sums[currencyIndex], counts[currencyIndex],
+                    valueScales[currencyIndex], remainders[currencyIndex]);
+        }
+    }
+
+    void addEachTo(PaymentWindows windows) {
+        for (int i = 0; i < usedCount; i++) {
+            int currencyIndex = used[i];
+            windows.addTotal(currencyIndex, sums[currencyIndex], counts[currencyIndex], remainders[currencyIndex]);
+        }
+    }
+
+    /**
+     * Forgets all the sums, so the instance can be reused.
+     */
+    public void clear() {
+        for (int i = 0; i < usedCount; i++) {
+            int currencyIndex = used[i];
+            sums[currencyIndex] = 0;
+            counts[currencyIndex] = 0;
+            valueScales[currencyIndex] = Integer.MIN_VALUE;
+            remainders[currencyIndex] = null;
+        }
+        usedCount = 0;
+        rejected = 0;
+    }
+
+    /**
+     * @return the sums, one MoneyAmount per currency
+     */
+    public List<MoneyAmount> getMoneyAmounts() {
+        List<MoneyAmount> amounts = new ArrayList<>(usedCount);
+        for (int i = 0; i < usedCount; i++) {
+            int currencyIndex = used[i];
+            BigDecimal value = BigDecimal.valueOf(sums[currencyIndex], Currencies.scale(currencyIndex));
+            if (valueScales[currencyIndex] < value.scale())
+                value = value.setScale(valueScales[currencyIndex]);
+            if (remainders[currencyIndex] != null)
+                value = value.add(remainders[currencyIndex]);
+
+            amounts.add(new MoneyAmount(value, Currencies.currency(currencyIndex)));
+        }
+        return amounts;
+    }
+
+    public long getPaymentCount() {
+        long total = 0;
+        for (int i = 0; i < usedCount; i++)
+            total += counts[used[i]];
+
+        return total;
+    }
+
+    long getPaymentCount(int currencyIndex) {
+        return counts[currencyIndex];
+    }
+
+    /**
+     * @param currencyIndex
+     * @return largest scale of the payments in the currency, Integer.MIN_VALUE if there are none
+     */
+    int getValueScale(int currencyIndex) {
+        return valueScales[currencyIndex];
+    }
+
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    public boolean isEmpty() {
+        return usedCount == 0;
+    }
+
+    private void touch(int currencyIndex, int scale) {
+        if (counts[currencyIndex]++ == 0)
+            used[usedCount++] = currencyIndex;
+        if (scale > valueScales[currencyIndex])
+            valueScales[currencyIndex] = scale;
+    }
+
+    private void addToRemainder(int currencyIndex, BigDecimal value) {
+        BigDecimal current = remainders[currencyIndex];
+        remainders[currencyIndex] = current == null ? value : current.add(value);
+    }
+}
@@ -0,0 +1,244 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.FixedPointMoney;
+import net.bytemix.domain.MoneyAmount;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Totals and counts of the payments that arrived in the last minute, hour and day, per currency.
+ *
+ * Every currency has one preallocated ring of time buckets per TimeWindow. A payment is added to the bucket of the
+ * current time, and a bucket that is reused for a newer period is reset first, so individual payments are never
+ * stored and the memory doesn't grow with the number of payments. A window query sums the buckets of the ring,
+ * which takes O(buckets) regardless of the traffic.
+ *
+ * Nothing is locked. Every bucket is tagged with the number of its period: the writer that finds an older tag swaps
+ * it for RESETTING with compareAndSet, resets the bucket and tags it with the new period, while the other writers of
+ * that bucket wait for the tag. Sums and counts are added with atomic operations. A payment of a period whose bucket
+ * was already reused for a newer one is added to the newer one.
+ */
+public class PaymentWindows {
+    private static final TimeWindow[] WINDOWS = TimeWindow.values();
+    private static final long NEVER = Long.MIN_VALUE;
+    private static final long RESETTING = Long.MIN_VALUE + 1;
+
+    private final Clock clock;
+    private final AtomicReferenceArray<CurrencyWindows> currencies = new AtomicReferenceArray<>(Currencies.count());
+
+    public PaymentWindows(Clock clock) {
+        if (clock == null)
+            throw new IllegalArgumentException("Clock cannot be null");
+
+        this.clock = clock;
+    }
+
+    /**
+     * Adds payment of unscaledValue * 10^-scale in the currency with the given Currencies index.
+     *
+     * @param currencyIndex
+     * @param unscaledValue
+     * @param scale
+     */
+    public void add(int currencyIndex, long unscaledValue, int scale) {
+        int currencyScale = Currencies.scale(currencyIndex);
+        if (scale <= currencyScale) {
+            try {
+                addTotal(currencyIndex, FixedPointMoney.rescale(unscaledValue, scale, currencyScale), 1, null);
+                return;
+            } catch (ArithmeticException e) {
+                //Doesn't fit into a long, handled by the remainder below
+            }
+        }
+        addTotal(currencyIndex, 0, 1, BigDecimal.valueOf(unscaledValue, scale));
+    }
+
+    public void add(MoneyAmount payment) {
+        if (payment == null)
+            throw new IllegalArgumentException("Money cannot be null");
+
+        BigDecimal value = payment.getValue();
+        BigInteger unscaled = value.unscaledValue();
+        int currencyIndex = Currencies.indexOf(payment.getCurrency());
+        if (unscaled.bitLength() < Long.SIZE)
+            add(currencyIndex, unscaled.longValue(), value.scale());
+        else
+            addTotal(currencyIndex, 0, 1, value);
+    }
+
+    /**
+     * Adds pre-aggregated payments that arrived now.
+     *
+     * @param currencyIndex
+     * @param minorUnits sum of the payments scaled to the currency's fraction digits
+     * @param count number of the aggregated payments
+     * @param remainder sum of the payments that didn't fit into minorUnits, may be null
+     */
+    public void addTotal(int currencyIndex, long minorUnits, long count, BigDecimal remainder) {
+        windowsFor(currencyIndex).add(clock.millis(), minorUnits, count, remainder);
+    }
+
+    /**
+     * Adds pre-aggregated payments that arrived now, one update per currency.
+     *
+     * @param totals
+     */
+    void addTotals(PaymentTotals totals) {
+        totals.addEachTo(this);
+    }
+
+    /**
+     * @param currencyIndex
+     * @param window
+     * @return total of the payments in the window ending now, null if the currency had no payment yet
+     */
+    public WindowTotal getTotal(int currencyIndex, TimeWindow window) {
+        if (window == null)
+            throw new IllegalArgumentException("Window cannot be null");
+
+        CurrencyWindows windows = currencies.get(currencyIndex);
+        if (windows == null)
+            return null;
+
+        return windows.total(clock.millis(), window);
+    }
+
+    private CurrencyWindows windowsFor(int currencyIndex) {
+        CurrencyWindows windows = currencies.get(currencyIndex);
+        if (windows == null) {
+            currencies.compareAndSet(currencyIndex, null, new CurrencyWindows(currencyIndex));
+            windows = currencies.get(currencyIndex);
+        }
+
+        return windows;
+    }
+
+    private static final class CurrencyWindows {
+        private final int currencyIndex;
+        private final Ring[] rings = new Ring[WINDOWS.length];
+
+        private CurrencyWindows(int currencyIndex) {
+            this.currencyIndex = currencyIndex;
+            for (int i = 0; i < WINDOWS.length; i++)
+                rings[i] = new Ring(WINDOWS[i], Currencies.scale(currencyIndex));
+        }
+
+        private void add(long now, long minorUnits, long count, BigDecimal remainder) {
+            for (Ring ring : rings)
+                ring.add(now, minorUnits, count, remainder);
+        }
+
+        private WindowTotal total(long now, TimeWindow window) {
+            return rings[window.ordinal()].total(now, currencyIndex);
+        }
+    }
+
+    /**
+     * Buckets of one window. Bucket i holds the payments of the period with number periods[i], where the period
+     * number is the time divided by the bucket length.
+     */
+    private static final class Ring {
+        private final TimeWindow window;
+        private final int scale;
+        private final int buckets;
+        private final AtomicLongArray periods;
+        private final AtomicLongArray sums;
+        private final AtomicLongArray counts;
+        private final AtomicReferenceArray<BigDecimal> remainders;
+
+        private Ring(TimeWindow window, int scale) {
+            this.window = window;
+            this.scale = scale;
+            this.buckets = window.getBuckets();
+            this.periods = new AtomicLongArray(buckets);
+            this.sums = new AtomicLongArray(buckets);
+            this.counts = new AtomicLongArray(buckets);
+            this.remainders = new AtomicReferenceArray<>(buckets);
+            for (int i = 0; i < buckets; i++)
+                periods.set(i, NEVER);
+        }
+
+        private void add(long now, long minorUnits, long count, BigDecimal remainder) {
+            long period = now / window.getBucketMillis();
+            int i = (int) (period % buckets);
+            while (true) {
+                long tag = periods.get(i);
+                if (tag == RESETTING) {
+                    Thread.yield();
+                } else if (tag < period) {
+                    if (periods.compareAndSet(i, tag, RESETTING)) {
+                        sums.set(i, 0);
+                        counts.set(i, 0);
+                        remainders.set(i, null);
+                        periods.set(i, period);
+                    }
+                } else {
+                    break;
+                }
+            }
+
+            while (true) {
+                long sum = sums.get(i);
+                long total = sum + minorUnits;
+                if (((sum ^ total) & (minorUnits ^ total)) < 0) {
+                    remainder = add(remainder, BigDecimal.valueOf(minorUnits, scale));
+                    break;
+                }
+                if (sums.compareAndSet(i, sum, total))
+                    break;
+            }
+            counts.addAndGet(i, count);
+            if (remainder != null)
+                addRemainder(i, remainder);
+        }
+
+        private void addRemainder(int i, BigDecimal remainder) {
+            while (true) {
+                BigDecimal current = remainders.get(i);
+                if (remainders.compareAndSet(i, current, add(current, remainder)))
+                    return;
+            }
+        }
+
+        private WindowTotal total(long now, int currencyIndex) {
+            long period = now / window.getBucketMillis();
+            long sum = 0;
+            long count = 0;
+            BigDecimal remainder = null;
+            for (int i = 0; i < buckets; i++) {
+                long tag = periods.get(i);
+                if (tag == RESETTING || tag <= period - buckets || tag > period)
+                    continue;
+
+                long bucketSum = sums.get(i);
+                try {
+                    sum = Math.addExact(sum, bucketSum);
+                } catch (ArithmeticException e) {
+                    remainder = add(remainder, BigDecimal.valueOf(bucketSum, scale));
+                }
+                count += counts.get(i);
+                remainder = add(remainder, remainders.get(i));
+            }
+
+            BigDecimal value = BigDecimal.valueOf(sum, scale);
+            if (remainder != null)
+                value = value.add(remainder);
+
+            return new WindowTotal(window, new MoneyAmount(value, Currencies.currency(currencyIndex)), count);
+        }
+
+        private static BigDecimal add(BigDecimal a, BigDecimal b) {
+            if (a == null)
+                return b;
+            if (b == null)
+                return a;
+
+            return a.add(b);
+        }
+    }
+}
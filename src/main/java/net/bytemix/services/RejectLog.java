@@ -0,0 +1,338 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.ParseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records input lines that couldn't be parsed, without slowing down the threads that parse the input.
+ *
+ * A reject is a small record (source, location, reason and at most MAX_INPUT bytes of the line) copied into a
+ * bounded ring buffer of preallocated slots. Any number of threads can add records without locking: a thread
+ * claims a slot by moving the tail with compareAndSet and publishes it by setting the slot's sequence number. When
+ * the buffer is full the record is dropped and only counted.
+ *
+ * A single background thread, started by the first reject, drains the buffer every DRAIN_INTERVAL_MILLIS, or as
+ * soon as another half of it is filled, and writes the records to the reject file, one per line:
+ * "source:location REASON [input]". Without a file, only the first LOGGED_RECORDS records of every summary interval
+ * are logged. Every summary interval in which something was rejected also logs one line with the counts per
+ * reason, so a dirty feed produces a few log lines instead of one per bad line.
+ */
+public class RejectLog implements Closeable {
+    /**
+     * Longer input is truncated
+     */
+    public static final int MAX_INPUT = 80;
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final long DEFAULT_SUMMARY_MILLIS = 10000;
+    private static final long DRAIN_INTERVAL_MILLIS = 200;
+    private static final int LOGGED_RECORDS = 10;
+    private static final ParseStatus[] REASONS = ParseStatus.values();
+
+    private final Writer output;
+    private final long summaryNanos;
+
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Sequence number of every slot. A slot can be claimed for position p when its sequence is p, and drained when
+     * it is p + 1. Draining sets it to p + capacity, the position that will use the slot next.
+     */
+    private final AtomicLongArray sequences;
+    private final String[] sources;
+    private final long[] locations;
+    private final ParseStatus[] reasons;
+    /**
+     * MAX_INPUT bytes per slot
+     */
+    private final byte[] inputs;
+    private final int[] inputLengths;
+    private final boolean[] truncated;
+    /**
+     * Only used by the drain thread, and by close after the thread ended
+     */
+    private long head;
+
+    private final AtomicLongArray counts = new AtomicLongArray(REASONS.length);
+    private final LongAdder dropped = new LongAdder();
+    private final long[] summarizedCounts = new long[REASONS.length];
+    private long summarizedDropped;
+    private long loggedInInterval;
+    private long lastSummary;
+
+    private volatile Thread drainer;
+    private volatile boolean closed;
+
+    /**
+     * Logs the rejects, see the class description.
+     */
+    public RejectLog() {
+        this((Writer) null, DEFAULT_CAPACITY, DEFAULT_SUMMARY_MILLIS);
+    }
+
+    /**
+     * @param file file the records are appended to, null to log them
+     * @param capacity number of records that can wait for the drain thread, rounded up to a power of two
+     * @param summaryMillis time between two summaries
+     * @throws IOException if the file can't be opened
+     */
+    public RejectLog(Path file, int capacity, long summaryMillis) throws IOException {
+        this(file == null ? null : Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), capacity, summaryMillis);
+    }
+
+    private RejectLog(Writer output, int capacity, long summaryMillis) {
+        if (capacity <= 0 || capacity > 1 << 20)
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^20");
+        if (summaryMillis <= 0)
+            throw new IllegalArgumentException("Summary interval must be positive");
+
+        int slots = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.output = output;
+        this.summaryNanos = TimeUnit.MILLISECONDS.toNanos(summaryMillis);
+        this.mask = slots - 1;
+        this.sequences = new AtomicLongArray(slots);
+        this.sources = new String[slots];
+        this.locations = new long[slots];
+        this.reasons = new ParseStatus[slots];
+        this.inputs = new byte[slots * MAX_INPUT];
+        this.inputLengths = new int[slots];
+        this.truncated = new boolean[slots];
+        for (int i = 0; i < slots; i++)
+            sequences.set(i, i);
+        this.lastSummary = System.nanoTime();
+    }
+
+    /**
+     * A run without bad input never starts the thread
+     */
+    private synchronized void startDrainer() {
+        if (drainer != null || closed)
+            return;
+
+        drainer = new Thread(this::drainLoop, "reject-log-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Records a rejected line. Safe to call from any number of threads, never blocks.
+     *
+     * @param source where the line comes from, e.g. a file name
+     * @param location line number or byte offset of the line in the source
+     * @param reason
+     * @param data
+     * @param start index of the first byte of the line
+     * @param end index after the last byte of the line
+     * @return false if the buffer was full and the record was only counted
+     */
+    public boolean reject(String source, long location, ParseStatus reason, byte[] data, int start, int end) {
+        if (reason == null || data == null)
+            throw new IllegalArgumentException("Reason and data cannot be null");
+
+        counts.incrementAndGet(reason.ordinal());
+        long position = claim();
+        if (position < 0)
+            return false;
+
+        int slot = (int) (position & mask);
+        int length = Math.min(end - start, MAX_INPUT);
+        sources[slot] = source;
+        locations[slot] = location;
+        reasons[slot] = reason;
+        System.arraycopy(data, start, inputs, slot * MAX_INPUT, length);
+        inputLengths[slot] = length;
+        truncated[slot] = end - start > MAX_INPUT;
+        sequences.set(slot, position + 1);
+
+        Thread drainer = this.drainer;
+        if (drainer == null)
+            startDrainer();
+        //Wakes the drain thread early every half of the buffer, so that a burst doesn't fill it up
+        else if ((position & (mask >> 1)) == 0)
+            LockSupport.unpark(drainer);
+        return true;
+    }
+
+    /**
+     * @param source
+     * @param location
+     * @param reason
+     * @param line
+     * @return false if the buffer was full and the record was only counted
+     */
+    public boolean reject(String source, long location, ParseStatus reason, String line) {
+        if (line == null)
+            throw new IllegalArgumentException("Line cannot be null");
+
+        //Only the part that is kept is encoded
+        String kept = line.length() > MAX_INPUT ? line.substring(0, MAX_INPUT + 1) : line;
+        byte[] data = kept.getBytes(StandardCharsets.UTF_8);
+        return reject(source, location, reason, data, 0, data.length);
+    }
+
+    /**
+     * @return position of the claimed slot, -1 if the buffer is full
+     */
+    private long claim() {
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) (position & mask));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1))
+                    return position;
+                position = tail.get();
+            } else if (sequence < position) {
+                dropped.increment();
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return number of all the rejected lines, including the dropped records
+     */
+    public long getRejectedCount() {
+        long rejected = 0;
+        for (int i = 0; i < REASONS.length; i++)
+            rejected += counts.get(i);
+        return rejected;
+    }
+
+    public long getRejectedCount(ParseStatus reason) {
+        return counts.get(reason.ordinal());
+    }
+
+    /**
+     * @return number of records that were not written because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops the drain thread, writes the remaining records and a final summary, and closes the file.
+     */
+    @Override
+    public void close() {
+        Thread drainer;
+        synchronized (this) {
+            if (closed)
+                return;
+
+            closed = true;
+            drainer = this.drainer;
+        }
+        if (drainer != null) {
+            LockSupport.unpark(drainer);
+            try {
+                drainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        drain();
+        summarize();
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                Log.logger.error("Error closing the reject file", e);
+            }
+        }
+    }
+
+    private void drainLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_INTERVAL_MILLIS));
+            drain();
+            if (System.nanoTime() - lastSummary >= summaryNanos)
+                summarize();
+        }
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(MAX_INPUT + 64);
+        boolean written = false;
+        try {
+            while (true) {
+                int slot = (int) (head & mask);
+                if (sequences.get(slot) != head + 1)
+                    break;
+
+                if (output != null || loggedInInterval < LOGGED_RECORDS) {
+                    line.setLength(0);
+                    line.append(sources[slot]).append(':').append(locations[slot]).append(' ')
+                            .append(reasons[slot]).append(" [")
+                            .append(new String(inputs, slot * MAX_INPUT, inputLengths[slot], StandardCharsets.UTF_8))
+                            .append(truncated[slot] ? "...]" : "]");
+                    if (output != null) {
+                        output.append(line).append('\n');
+                        written = true;
+                    } else {
+                        Log.logger.info("Rejected " + line);
+                        loggedInInterval++;
+                    }
+                }
+                sources[slot] = null;
+                sequences.set(slot, head + mask + 1);
+                head++;
+            }
+            if (written)
+                output.flush();
+        } catch (IOException e) {
+            Log.logger.error("Error writing the reject file", e);
+        }
+    }
+
+    /**
+     * Logs the counts of the lines rejected since the last summary, if there were any
+     */
+    private void summarize() {
+        lastSummary = System.nanoTime();
+        loggedInInterval = 0;
+
+        StringBuilder reasonCounts = new StringBuilder();
+        long total = 0;
+        for (int i = 0; i < REASONS.length; i++) {
+            long count = counts.get(i);
+            long delta = count - summarizedCounts[i];
+            summarizedCounts[i] = count;
+            if (delta == 0)
+                continue;
+
+            reasonCounts.append(reasonCounts.length() == 0 ? "" : ", ").append(REASONS[i]).append(' ').append(delta);
+            total += delta;
+        }
+        long droppedCount = dropped.sum();
+        long droppedDelta = droppedCount - summarizedDropped;
+        summarizedDropped = droppedCount;
+
+        if (total > 0)
+            Log.logger.warn(total + " lines rejected (" + reasonCounts + ")" + (droppedDelta > 0
+                    ? ", " + droppedDelta + " of them not recorded because the buffer was full" : ""));
+    }
+
+    /**
+     * Loaded with the first record or summary that is logged
+     */
+    private static final class Log {
+        private static final Logger logger = LoggerFactory.getLogger(RejectLog.class);
+    }
+}
@@ -0,0 +1,120 @@
+package net.bytemix.services;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Totals of a PaymentReplay, per file and overall, with the time it took.
+ */
+public class ReplayResult {
+    private final List<FileResult> files;
+    private final PaymentTotals totals;
+    private final long nanos;
+
+    ReplayResult(List<FileResult> files, PaymentTotals totals, long nanos) {
+        this.files = Collections.unmodifiableList(files);
+        this.totals = totals;
+        this.nanos = nanos;
+    }
+
+    public List<FileResult> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return totals of all the files that could be read
+     */
+    public PaymentTotals getTotals() {
+        return totals;
+    }
+
+    /**
+     * @return wall-clock time of the whole replay
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (FileResult file : files)
+            bytes += file.bytes;
+        return bytes;
+    }
+
+    /**
+     * @return number of files that couldn't be read
+     */
+    public int getFailedCount() {
+        int failed = 0;
+        for (FileResult file : files) {
+            if (file.error != null)
+                failed++;
+        }
+        return failed;
+    }
+
+    /**
+     * @return payments of all the files per second of the wall-clock time
+     */
+    public double getPaymentsPerSecond() {
+        return perSecond(totals.getPaymentCount(), nanos);
+    }
+
+    private static double perSecond(long amount, long nanos) {
+        return nanos == 0 ? 0 : amount * 1e9 / nanos;
+    }
+
+    /**
+     * Totals of one file
+     */
+    public static class FileResult {
+        private final Path file;
+        private final PaymentTotals totals;
+        private final long bytes;
+        private final long nanos;
+        private final String error;
+
+        FileResult(Path file, PaymentTotals totals, long bytes, long nanos, String error) {
+            this.file = file;
+            this.totals = totals;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return null if the file couldn't be read
+         */
+        public PaymentTotals getTotals() {
+            return totals;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return time from the start to the end of reading the file, which shares the threads with other files
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return why the file couldn't be read, null if it could
+         */
+        public String getError() {
+            return error;
+        }
+
+        public double getPaymentsPerSecond() {
+            return totals == null ? 0 : perSecond(totals.getPaymentCount(), nanos);
+        }
+    }
+}
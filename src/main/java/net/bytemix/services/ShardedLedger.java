@@ -0,0 +1,273 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Ledger of payments whose state is split into shards by currency, each shard owned by a single writer thread.
+ *
+ * Producers don't touch the shard state, they fill one PaymentBatch per shard (see Producer) and hand full batches
+ * over through the shard's bounded queue. The writer thread of the shard is the only one that updates its totals, so
+ * the updates are plain long additions without atomics or locks. Reading goes through the same queues: every shard
+ * copies its totals when the read request reaches it, and the copies are merged into one PaymentTotals.
+ *
+ * With a MoneyService, every shard also registers its batches into it, so the service gets each currency from a
+ * single thread and the journal, event store and snapshots see the payments as usual.
+ *
+ * All the payments of one currency go to the same shard, so a single very busy currency is limited by one writer.
+ * Independent ledgers can live in the same process, each with its own threads.
+ */
+public class ShardedLedger implements Closeable {
+    private static final Object STOP = new Object();
+
+    private Logger logger = LoggerFactory.getLogger(ShardedLedger.class);
+    private final MoneyService moneyService;
+    private final Shard[] shards;
+    private final int batchSize;
+    private volatile boolean closed;
+
+    /**
+     * @param name prefix of the writer thread names
+     * @param shardCount number of writer threads
+     * @param batchSize number of payments a producer collects for a shard before handing them over
+     * @param queueCapacity number of batches that can wait for a writer before the producers are blocked
+     */
+    public ShardedLedger(String name, int shardCount, int batchSize, int queueCapacity) {
+        this(null, name, shardCount, batchSize, queueCapacity);
+    }
+
+    /**
+     * @param moneyService service the shards register their batches into, null to only keep the totals
+     * @param name prefix of the writer thread names
+     * @param shardCount number of writer threads
+     * @param batchSize number of payments a producer collects for a shard before handing them over
+     * @param queueCapacity number of batches that can wait for a writer before the producers are blocked
+     */
+    public ShardedLedger(MoneyService moneyService, String name, int shardCount, int batchSize, int queueCapacity) {
+        if (shardCount <= 0 || batchSize <= 0 || queueCapacity <= 0)
+            throw new IllegalArgumentException("Number of shards, batch size and queue capacity must be positive");
+
+        this.moneyService = moneyService;
+        this.batchSize = batchSize;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(queueCapacity);
+            shards[i].thread = new Thread(shards[i]::run, name + "-shard-" + i);
+            //An idle ledger doesn't keep the process running, close still waits for the batches
+            shards[i].thread.setDaemon(true);
+            shards[i].thread.start();
+        }
+    }
+
+    /**
+     * @return new producer, to be used by a single thread
+     */
+    public Producer producer() {
+        return new Producer();
+    }
+
+    /**
+     * Merges the totals of all the shards. Every batch handed over before the call is included, and registered into
+     * the MoneyService if the ledger has one.
+     *
+     * @return new totals, not connected to the ledger
+     */
+    public PaymentTotals getTotals() {
+        if (closed)
+            throw new IllegalStateException("The ledger is closed");
+
+        CompletableFuture<?>[] copies = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            CompletableFuture<PaymentTotals> copy = new CompletableFuture<>();
+            shards[i].put(copy);
+            copies[i] = copy;
+        }
+
+        PaymentTotals merged = new PaymentTotals();
+        for (CompletableFuture<?> copy : copies)
+            merged.merge((PaymentTotals) copy.join());
+
+        return merged;
+    }
+
+    /**
+     * @return snapshot of the balances, one MoneyAmount per currency
+     */
+    public List<MoneyAmount> getMoneyAmounts() {
+        return getTotals().getMoneyAmounts();
+    }
+
+    /**
+     * Stops the writer threads after they register all the batches that were handed over.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+
+        closed = true;
+        for (Shard shard : shards)
+            shard.put(STOP);
+
+        try {
+            for (Shard shard : shards)
+                shard.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int shardOf(int currencyIndex) {
+        return currencyIndex % shards.length;
+    }
+
+    /**
+     * Collects payments of one thread and hands them over to the shards in batches. Not thread-safe.
+     */
+    public class Producer {
+        private final PaymentBatch[] batches = new PaymentBatch[shards.length];
+
+        private Producer() {
+        }
+
+        /**
+         * Adds payment of unscaledValue * 10^-scale in the currency with the given Currencies index.
+         *
+         * @param currencyIndex
+         * @param unscaledValue
+         * @param scale
+         */
+        public void add(int currencyIndex, long unscaledValue, int scale) {
+            batchFor(currencyIndex).add(currencyIndex, unscaledValue, scale);
+        }
+
+        public void add(MoneyAmount payment) {
+            if (payment == null)
+                throw new IllegalArgumentException("Money cannot be null");
+
+            batchFor(Currencies.indexOf(payment.getCurrency())).add(payment);
+        }
+
+        /**
+         * Adds all the payments of the batch, each to the batch of its shard. The batch is not cleared.
+         *
+         * @param batch
+         */
+        public void add(PaymentBatch batch) {
+            if (batch == null)
+                throw new IllegalArgumentException("Batch cannot be null");
+
+            for (int i = 0; i < batch.columnSize(); i++)
+                add(batch.currencyIndex(i), batch.unscaledValue(i), batch.scale(i));
+            for (MoneyAmount payment : batch.getBigPayments())
+                add(payment);
+        }
+
+        /**
+         * Hands over all the collected payments, so that getTotals includes them.
+         */
+        public void flush() {
+            for (int i = 0; i < batches.length; i++) {
+                if (batches[i] != null && !batches[i].isEmpty()) {
+                    shards[i].put(batches[i]);
+                    batches[i] = null;
+                }
+            }
+        }
+
+        private PaymentBatch batchFor(int currencyIndex) {
+            int shard = shardOf(currencyIndex);
+            PaymentBatch batch = batches[shard];
+            if (batch != null && batch.isFull()) {
+                shards[shard].put(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = shards[shard].takeFreeBatch(batchSize);
+                batches[shard] = batch;
+            }
+
+            return batch;
+        }
+    }
+
+    private class Shard {
+        /**
+         * PaymentBatch to register, CompletableFuture to complete with a copy of the totals, or STOP
+         */
+        private final BlockingQueue<Object> queue;
+        /**
+         * Registered batches, returned to the producers so they don't allocate new ones
+         */
+        private final BlockingQueue<PaymentBatch> freeBatches;
+        /**
+         * Written and read only by the shard's thread
+         */
+        private final PaymentTotals totals = new PaymentTotals();
+        private Thread thread;
+
+        private Shard(int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.freeBatches = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        private void put(Object message) {
+            try {
+                queue.put(message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the shard", e);
+            }
+        }
+
+        private PaymentBatch takeFreeBatch(int batchSize) {
+            PaymentBatch batch = freeBatches.poll();
+            return batch != null ? batch : new PaymentBatch(batchSize);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void run() {
+            try {
+                while (true) {
+                    Object message = queue.take();
+                    if (message == STOP)
+                        return;
+
+                    if (message instanceof PaymentBatch) {
+                        PaymentBatch batch = (PaymentBatch) message;
+                        totals.merge(batch.getTotals());
+                        register(batch);
+                        batch.clear();
+                        freeBatches.offer(batch);
+                    } else {
+                        ((CompletableFuture<PaymentTotals>) message).complete(new PaymentTotals().merge(totals));
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Ledger shard interrupted");
+            }
+        }
+
+        /**
+         * A failure is only logged, the shard has to keep taking batches or the producers would block forever
+         */
+        private void register(PaymentBatch batch) {
+            if (moneyService == null)
+                return;
+
+            try {
+                moneyService.registerPayments(batch);
+            } catch (RuntimeException e) {
+                logger.error("Error registering " + batch.size() + " payments", e);
+            }
+        }
+    }
+}
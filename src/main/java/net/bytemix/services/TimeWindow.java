@@ -0,0 +1,33 @@
+package net.bytemix.services;
+
+/**
+ * Sliding windows tracked by PaymentWindows. Each window is a ring of fixed-size time buckets, so its totals move
+ * forward one bucket at a time.
+ */
+public enum TimeWindow {
+    MINUTE("1m", 60, 1000L),
+    HOUR("1h", 60, 60 * 1000L),
+    DAY("24h", 96, 15 * 60 * 1000L);
+
+    private final String label;
+    private final int buckets;
+    private final long bucketMillis;
+
+    TimeWindow(String label, int buckets, long bucketMillis) {
+        this.label = label;
+        this.buckets = buckets;
+        this.bucketMillis = bucketMillis;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+}
@@ -0,0 +1,39 @@
+package net.bytemix.services;
+
+import net.bytemix.domain.MoneyAmount;
+
+/**
+ * Sum and count of the payments of one currency in a TimeWindow. Immutable.
+ */
+public class WindowTotal {
+    private final TimeWindow window;
+    private final MoneyAmount amount;
+    private final long count;
+
+    public WindowTotal(TimeWindow window, MoneyAmount amount, long count) {
+        this.window = window;
+        this.amount = amount;
+        this.count = count;
+    }
+
+    public TimeWindow getWindow() {
+        return window;
+    }
+
+    public MoneyAmount getAmount() {
+        return amount;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "WindowTotal{" +
+                "window=" + window +
+                ", amount=" + amount +
+                ", count=" + count +
+                '}';
+    }
+}
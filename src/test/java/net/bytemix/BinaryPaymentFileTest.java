@@ -0,0 +1,112 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.BinaryPaymentFileReader;
+import net.bytemix.services.BinaryPaymentFileWriter;
+import net.bytemix.services.PaymentFileReader;
+import net.bytemix.services.PaymentTotals;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BinaryPaymentFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int usd = Currencies.indexOf(Currency.getInstance("USD"));
+    private int jpy = Currencies.indexOf(Currency.getInstance("JPY"));
+
+    @Test
+    public void convertedFileLoadsTheSameTotals() throws IOException {
+        Path text = folder.newFile("payments.txt").toPath();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+            content.append("USD 1.5\nCZK -10\nUSD 0.125\n");
+        //The JPY amount doesn't fit into a long, the CZK one raises the scale of CZK so that the others need more
+        content.append("bad line\nJPY 100000000000000000000\nEUR 2\nCZK 0.000000000000000001\nCZK 12345");
+        Files.write(text, content.toString().getBytes(StandardCharsets.UTF_8));
+        Path binary = folder.getRoot().toPath().resolve("payments.bin");
+
+        Assert.assertEquals(1504, BinaryPaymentFileWriter.convert(text, binary));
+        Assert.assertTrue(BinaryPaymentFileReader.isBinary(binary));
+        Assert.assertFalse(BinaryPaymentFileReader.isBinary(text));
+
+        PaymentTotals fromText = new PaymentFileReader().aggregate(text);
+        PaymentTotals fromBinary = new BinaryPaymentFileReader().aggregate(binary);
+        Assert.assertEquals(1504, fromBinary.getPaymentCount());
+        Map<String, BigDecimal> textValues = values(fromText.getMoneyAmounts());
+        Assert.assertEquals(textValues.size(), values(fromBinary.getMoneyAmounts()).size());
+        for (Map.Entry<String, BigDecimal> entry : values(fromBinary.getMoneyAmounts()).entrySet())
+            Assert.assertEquals(entry.getKey(), 0, textValues.get(entry.getKey()).compareTo(entry.getValue()));
+    }
+
+    @Test
+    public void amountsThatDontFitAreBigValues() throws IOException {
+        Path binary = folder.getRoot().toPath().resolve("big.bin");
+        try (BinaryPaymentFileWriter writer = new BinaryPaymentFileWriter(binary, new int[]{usd, jpy},
+                new int[]{2, 0}, 3)) {
+            Assert.assertTrue(writer.add(usd, 150, 2));
+            Assert.assertFalse(writer.add(jpy, 15, 1));
+            Assert.assertFalse(writer.add(usd, Long.MAX_VALUE, 0));
+            writer.add(jpy, new BigDecimal("100000000000000000000"));
+            Assert.assertEquals(1, writer.getRecordCount());
+            Assert.assertEquals(3, writer.getBigValueCount());
+        }
+
+        PaymentTotals totals = new BinaryPaymentFileReader().aggregate(binary);
+        Assert.assertEquals(4, totals.getPaymentCount());
+        Map<String, BigDecimal> values = values(totals.getMoneyAmounts());
+        Assert.assertEquals(0, new BigDecimal("9223372036854775808.50").compareTo(values.get("USD")));
+        Assert.assertEquals(0, new BigDecimal("100000000000000000001.5").compareTo(values.get("JPY")));
+    }
+
+    @Test
+    public void blocksAreChecksummed() throws IOException {
+        Path binary = folder.getRoot().toPath().resolve("blocks.bin");
+        try (BinaryPaymentFileWriter writer = new BinaryPaymentFileWriter(binary, new int[]{usd, jpy},
+                new int[]{2, 0}, 3)) {
+            for (int i = 0; i < 10; i++) {
+                Assert.assertTrue(writer.add(usd, 150, 2));
+                Assert.assertTrue(writer.add(jpy, 7, 0));
+            }
+        }
+
+        PaymentTotals totals = new BinaryPaymentFileReader().aggregate(binary);
+        Assert.assertEquals(20, totals.getPaymentCount());
+        Map<String, BigDecimal> values = values(totals.getMoneyAmounts());
+        Assert.assertEquals(new BigDecimal("15.00"), values.get("USD"));
+        Assert.assertEquals(new BigDecimal("70"), values.get("JPY"));
+
+        try (RandomAccessFile file = new RandomAccessFile(binary.toFile(), "rw")) {
+            file.seek(file.length() - 10);
+            file.write(file.read() ^ 1);
+        }
+        try {
+            new BinaryPaymentFileReader().aggregate(binary);
+            Assert.fail("Corrupted block was read");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("corrupted"));
+        }
+    }
+
+    private Map<String, BigDecimal> values(List<MoneyAmount> amounts) {
+        Map<String, BigDecimal> values = new HashMap<>();
+        for (MoneyAmount amount : amounts)
+            values.put(amount.getCurrency().getCurrencyCode(), amount.getValue());
+        return values;
+    }
+}
@@ -0,0 +1,79 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.PrecisionPolicy;
+import net.bytemix.services.CurrencyBalance;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+
+public class CurrencyBalanceTest {
+    private Currency usd = Currency.getInstance("USD");
+    private Currency jpy = Currency.getInstance("JPY");
+
+    @Test
+    public void concurrentAddsAreNotLost() throws InterruptedException {
+        final CurrencyBalance balance = new CurrencyBalance(usd);
+        final MoneyAmount payment = new MoneyAmount(new BigDecimal("0.25"), usd);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 100000; j++)
+                    balance.add(payment);
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        Assert.assertEquals(new BigDecimal("200000.00"), balance.getValue());
+    }
+
+    @Test
+    public void keepsScaleOfAddedAmounts() {
+        CurrencyBalance balance = new CurrencyBalance(usd);
+        balance.add(new MoneyAmount(BigDecimal.valueOf(-20.2), usd));
+        Assert.assertEquals(BigDecimal.valueOf(-20.2), balance.getValue());
+        balance.add(new MoneyAmount(new BigDecimal("0.005"), usd));
+        Assert.assertEquals(new BigDecimal("-20.195"), balance.getValue());
+    }
+
+    @Test
+    public void exactBeyondLongRange() {
+        CurrencyBalance balance = new CurrencyBalance(jpy);
+        BigDecimal max = BigDecimal.valueOf(Long.MAX_VALUE);
+        balance.add(new MoneyAmount(max, jpy));
+        balance.add(new MoneyAmount(max, jpy));
+        Assert.assertEquals(max.add(max), balance.getValue());
+    }
+
+    @Test
+    public void addUnscaledValues() {
+        CurrencyBalance balance = new CurrencyBalance(usd);
+        balance.add(1, 0);
+        balance.add(25, 2);
+        balance.add(5, 3);
+        Assert.assertEquals(new BigDecimal("1.255"), balance.getValue());
+    }
+
+    @Test
+    public void normalizedAccumulationRoundsToCurrencyScale() {
+        PrecisionPolicy policy = new PrecisionPolicy(RoundingMode.HALF_EVEN, 3, 5, true);
+        CurrencyBalance balance = new CurrencyBalance(usd, policy);
+        balance.add(1, 0);
+        balance.add(125, 3);
+        balance.add(135, 3);
+        balance.add(new MoneyAmount(new BigDecimal("0.0051"), usd));
+        balance.addTotal(100, 2, 4, new BigDecimal("0.0049"));
+        Assert.assertEquals(new BigDecimal("2.27"), balance.getValue());
+        Assert.assertEquals(6, balance.getPaymentCount());
+    }
+}
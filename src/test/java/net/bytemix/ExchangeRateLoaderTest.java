@@ -0,0 +1,68 @@
+package net.bytemix;
+
+
+import net.bytemix.services.ExchangeRateLoadResult;
+import net.bytemix.services.ExchangeRateLoader;
+import net.bytemix.services.MoneyService;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Currency;
+
+public class ExchangeRateLoaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Currency usd = Currency.getInstance("USD");
+    private Currency czk = Currency.getInstance("CZK");
+    private Currency eur = Currency.getInstance("EUR");
+
+    @Test
+    public void computesMissingInverses() throws IOException {
+        ExchangeRateLoadResult result = new ExchangeRateLoader(3, ExchangeRateLoader.DEFAULT_TOLERANCE)
+                .load(write("USD, CZK, 25", "", "EUR,USD,1.2", "USD, EUR, 0.8333", "USD, CZK, 25.0"));
+
+        Assert.assertTrue(result.getErrors().toString(), result.isValid());
+        Assert.assertEquals(3, result.getPairCount());
+        Assert.assertEquals(new BigDecimal("0.040"), result.getRates().get(czk).get(usd));
+        Assert.assertEquals(new BigDecimal("0.8333"), result.getRates().get(usd).get(eur));
+    }
+
+    @Test
+    public void findsConflictsAndBadLines() throws IOException {
+        ExchangeRateLoadResult result = new ExchangeRateLoader()
+                .load(write("USD, CZK, 25", "USD, CZK, 24", "EUR, USD, 1.2", "USD, EUR, 0.9", "ABC, USD, 1",
+                        "USD, CZK", "USD, USD, 2"));
+
+        Assert.assertFalse(result.isValid());
+        Assert.assertEquals(5, result.getErrors().size());
+    }
+
+    @Test
+    public void invalidRatesAreNotPublished() throws IOException {
+        MoneyService service = new MoneyService();
+        service.saveExchangeRate("USD, CZK, 25");
+
+        Assert.assertFalse(service.loadExchangeRatesFromFile(write("USD, CZK, 20", "EUR, USD, 1", "EUR, USD, 2"))
+                .isValid());
+        Assert.assertEquals(new BigDecimal("25"), service.getExchangeRates().rate(usd, czk));
+        Assert.assertNull(service.getExchangeRates().rate(eur, usd));
+
+        Assert.assertTrue(service.loadExchangeRatesFromFile(write("USD, CZK, 20", "EUR, USD, 1")).isValid());
+        Assert.assertEquals(new BigDecimal("20"), service.getExchangeRates().rate(usd, czk));
+        Assert.assertEquals(new BigDecimal("1.00000"), service.getExchangeRates().rate(usd, eur));
+    }
+
+    private Path write(String... lines) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+}
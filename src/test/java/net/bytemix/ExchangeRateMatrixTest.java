@@ -0,0 +1,76 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.PrecisionPolicy;
+import net.bytemix.services.ExchangeRateMatrix;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ExchangeRateMatrixTest {
+    private Currency usd = Currency.getInstance("USD");
+    private Currency czk = Currency.getInstance("CZK");
+    private Currency eur = Currency.getInstance("EUR");
+    private Currency gbp = Currency.getInstance("GBP");
+    private Map<Currency, Map<Currency, BigDecimal>> rates;
+
+    @Before
+    public void setup() {
+        rates = new HashMap<>();
+        put(czk, usd, new BigDecimal("0.04"));
+        put(usd, eur, new BigDecimal("0.5"));
+        put(eur, gbp, new BigDecimal("0.8"));
+    }
+
+    @Test
+    public void directRates() {
+        ExchangeRateMatrix matrix = ExchangeRateMatrix.build(rates, usd);
+        Assert.assertEquals(new BigDecimal("0.04"), matrix.rate(czk, usd));
+        Assert.assertEquals(new BigDecimal("0.8"), matrix.rate(eur, gbp));
+        Assert.assertEquals(BigDecimal.ONE, matrix.rate(czk, czk));
+    }
+
+    @Test
+    public void triangulatedThroughPivot() {
+        ExchangeRateMatrix matrix = ExchangeRateMatrix.build(rates, usd);
+        Assert.assertEquals(new BigDecimal("0.020"), matrix.rate(czk, eur));
+        //There is no rate from USD to GBP
+        Assert.assertNull(matrix.rate(czk, gbp));
+        Assert.assertNull(matrix.rate(usd, czk));
+    }
+
+    @Test
+    public void triangulatedRatesAreRounded() {
+        put(gbp, usd, new BigDecimal("1.2713"));
+        put(usd, czk, new BigDecimal("23.117"));
+        ExchangeRateMatrix matrix = ExchangeRateMatrix.build(rates, usd);
+        Assert.assertEquals(new BigDecimal("29.38864"), matrix.rate(gbp, czk));
+
+        PrecisionPolicy twoDigits = new PrecisionPolicy(RoundingMode.DOWN, 3, 2, false);
+        Assert.assertEquals(new BigDecimal("29.38"), ExchangeRateMatrix.build(rates, usd, twoDigits).rate(gbp, czk));
+    }
+
+    @Test
+    public void noPivot() {
+        ExchangeRateMatrix matrix = ExchangeRateMatrix.build(rates, null);
+        Assert.assertNull(matrix.rate(czk, eur));
+    }
+
+    @Test
+    public void unknownCurrencies() {
+        Assert.assertNull(ExchangeRateMatrix.EMPTY.rate(czk, usd));
+        Assert.assertNull(ExchangeRateMatrix.build(rates, usd).rate(Currency.getInstance("JPY"), usd));
+    }
+
+    private void put(Currency from, Currency to, BigDecimal rate) {
+        if (!rates.containsKey(from))
+            rates.put(from, new HashMap<Currency, BigDecimal>());
+        rates.get(from).put(to, rate);
+    }
+}
@@ -0,0 +1,50 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.FixedPointMoney;
+import net.bytemix.domain.MoneyAmount;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+
+public class FixedPointMoneyTest {
+    private Currency usd = Currency.getInstance("USD");
+    private Currency jpy = Currency.getInstance("JPY");
+
+    @Test
+    public void addTest() {
+        FixedPointMoney sum = new FixedPointMoney(1050, usd).add(new FixedPointMoney(-25, usd));
+        Assert.assertEquals(1025, sum.getMinorUnits());
+        Assert.assertEquals(usd, sum.getCurrency());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void addOverflow() {
+        new FixedPointMoney(Long.MAX_VALUE, usd).add(new FixedPointMoney(1, usd));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addDifferentCurrencies() {
+        new FixedPointMoney(1, usd).add(new FixedPointMoney(1, jpy));
+    }
+
+    @Test
+    public void fromMoneyAmount() {
+        FixedPointMoney money = FixedPointMoney.fromMoneyAmount(new MoneyAmount(BigDecimal.valueOf(151.2), usd));
+        Assert.assertEquals(15120, money.getMinorUnits());
+        Assert.assertEquals(new BigDecimal("151.20"), money.toMoneyAmount().getValue());
+
+        Assert.assertEquals(1500, FixedPointMoney.fromMoneyAmount(
+                new MoneyAmount(new BigDecimal("15.000"), usd)).getMinorUnits());
+    }
+
+    @Test
+    public void fromMoneyAmountNotRepresentable() {
+        Assert.assertNull(FixedPointMoney.fromMoneyAmount(new MoneyAmount(new BigDecimal("1.005"), usd)));
+        Assert.assertNull(FixedPointMoney.fromMoneyAmount(new MoneyAmount(new BigDecimal("1.5"), jpy)));
+        Assert.assertNull(FixedPointMoney.fromMoneyAmount(
+                new MoneyAmount(BigDecimal.valueOf(Long.MAX_VALUE), usd)));
+    }
+}
@@ -0,0 +1,139 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.BalanceSnapshot;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.ShardedLedger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class IngestionPipelineTest {
+
+    @Test
+    public void registersAllLines() throws Exception {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+            input.append(i % 2 == 0 ? "USD 1.5\n" : "CZK -2\r\n");
+        input.append("bad line\nUSD 0.5");
+
+        MoneyService moneyService = new MoneyService();
+        IngestionPipeline pipeline = new IngestionPipeline(moneyService, 3, 2);
+        pipeline.run(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.US_ASCII)));
+
+        Assert.assertEquals(50001, pipeline.getPaymentCount());
+        Assert.assertEquals(1, pipeline.getRejectedCount());
+
+        List<MoneyAmount> amounts = moneyService.getMoneyAmounts();
+        Assert.assertEquals(2, amounts.size());
+        for (MoneyAmount amount : amounts) {
+            BigDecimal expected = amount.getCurrency().getCurrencyCode().equals("USD")
+                    ? new BigDecimal("37500.5") : new BigDecimal("-50000");
+            Assert.assertEquals(0, expected.compareTo(amount.getValue()));
+        }
+    }
+
+    @Test
+    public void registersThroughLedger() throws Exception {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 30000; i++)
+            input.append(i % 3 == 0 ? "USD 1.5\n" : i % 3 == 1 ? "CZK -2\n" : "EUR 0.25\n");
+
+        MoneyService moneyService = new MoneyService();
+        try (ShardedLedger ledger = new ShardedLedger(moneyService, "test", 2, 64, 4)) {
+            IngestionPipeline pipeline = new IngestionPipeline(moneyService, ledger, 3, 2);
+            pipeline.run(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.US_ASCII)));
+
+            Assert.assertEquals(30000, pipeline.getPaymentCount());
+            Assert.assertEquals(30000, ledger.getTotals().getPaymentCount());
+        }
+        BalanceSnapshot snapshot = moneyService.getSnapshot();
+        Assert.assertEquals(30000, snapshot.getPaymentCount());
+        Assert.assertEquals(0, new BigDecimal("15000")
+                .compareTo(snapshot.getAmount(Currency.getInstance("USD")).getValue()));
+        Assert.assertEquals(0, new BigDecimal("2500")
+                .compareTo(snapshot.getAmount(Currency.getInstance("EUR")).getValue()));
+    }
+
+    @Test
+    public void skipsLineLongerThanBlock() throws Exception {
+        StringBuilder input = new StringBuilder("USD 1\nUSD ");
+        for (int i = 0; i < 2 * 1024 * 1024; i++)
+            input.append('1');
+        input.append("\nUSD 2\n");
+
+        MoneyService moneyService = new MoneyService();
+        IngestionPipeline pipeline = new IngestionPipeline(moneyService, 2, 2);
+        pipeline.run(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.US_ASCII)));
+
+        Assert.assertEquals(2, pipeline.getPaymentCount());
+        Assert.assertEquals(1, pipeline.getRejectedCount());
+        Assert.assertEquals(0, new BigDecimal("3").compareTo(moneyService.getMoneyAmounts().get(0).getValue()));
+    }
+
+    @Test
+    public void shutdownRegistersLinesHeldBack() throws Exception {
+        CountDownLatch secondRead = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        //The first read returns whole lines, but more input seems to be available, so the reader waits for it
+        InputStream input = new InputStream() {
+            private boolean first = true;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (first) {
+                    first = false;
+                    byte[] lines = "USD 1\nUSD 2\nUSD".getBytes(StandardCharsets.US_ASCII);
+                    System.arraycopy(lines, 0, b, off, lines.length);
+                    return lines.length;
+                }
+                secondRead.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+
+            @Override
+            public int available() {
+                return 1;
+            }
+        };
+
+        MoneyService moneyService = new MoneyService();
+        IngestionPipeline pipeline = new IngestionPipeline(moneyService, 2, 2);
+        Thread runner = new Thread(() -> {
+            try {
+                pipeline.run(input);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        runner.start();
+        secondRead.await();
+
+        pipeline.shutdown();
+        Assert.assertEquals(2, pipeline.getPaymentCount());
+        Assert.assertEquals(0, new BigDecimal("3").compareTo(moneyService.getMoneyAmounts().get(0).getValue()));
+
+        release.countDown();
+        runner.join();
+        Assert.assertEquals(2, pipeline.getPaymentCount());
+    }
+}
@@ -0,0 +1,42 @@
+package net.bytemix;
+
+
+import net.bytemix.metrics.LatencyHistogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(99));
+
+        for (long i = 1; i <= 1000; i++)
+            histogram.record(i * 1000);
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(500500, histogram.getMean(), 0.001);
+        assertClose(500000, histogram.getPercentile(50));
+        assertClose(990000, histogram.getPercentile(99));
+        Assert.assertEquals(1000000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void extremeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    /**
+     * Buckets are at most 1/16 of the value wide
+     */
+    private void assertClose(long expected, long actual) {
+        Assert.assertTrue(expected + " ~ " + actual, actual >= expected && actual <= expected + expected / 16);
+    }
+}
@@ -0,0 +1,28 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.MoneyFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.Currency;
+
+public class MoneyFormatTest {
+    private Currency usd = Currency.getInstance("USD");
+
+    @Test
+    public void sameAsDecimalFormat() {
+        DecimalFormat decimalFormat = new DecimalFormat("0.##");
+        String[] values = {"0", "-0", "20", "-20.2", "0.10", "0.015", "0.025", "12.305", "-0.001", "-0.005",
+                "1E+3", "0.99999", "123456789012345678901234.567", "-9223372036854775.8"};
+
+        for (String value : values) {
+            BigDecimal decimal = new BigDecimal(value);
+            Assert.assertEquals(value, "USD " + decimalFormat.format(decimal),
+                    MoneyFormat.format(new MoneyAmount(decimal, usd)));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyParser;
+import net.bytemix.domain.ParseStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+
+public class MoneyParserTest {
+    private MoneyParser parser = new MoneyParser();
+
+    @Test
+    public void parseSuccess() {
+        Assert.assertEquals(ParseStatus.OK, parser.parse("USD -20.25"));
+        Assert.assertEquals(Currency.getInstance("USD"), Currencies.currency(parser.getCurrencyIndex()));
+        Assert.assertEquals(-2025, parser.getUnscaledValue());
+        Assert.assertEquals(2, parser.getScale());
+    }
+
+    @Test
+    public void sameValuesAsBigDecimal() {
+        for (String number : new String[]{"0", "+1.2", "-0.001", "5.", ".5", "1E3", "1.5e-2", "000100"}) {
+            Assert.assertEquals(number, ParseStatus.OK, parser.parse("EUR " + number));
+            Assert.assertEquals(number, new BigDecimal(number), parser.toMoneyAmount().getValue());
+        }
+    }
+
+    @Test
+    public void parseByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap("xxCZK 151.25\nyy".getBytes(StandardCharsets.US_ASCII));
+        Assert.assertEquals(ParseStatus.OK, parser.parse(buffer, 2, 12));
+        Assert.assertEquals(Currency.getInstance("CZK"), Currencies.currency(parser.getCurrencyIndex()));
+        Assert.assertEquals(15125, parser.getUnscaledValue());
+        Assert.assertEquals(2, parser.getScale());
+    }
+
+    @Test
+    public void outOfRange() {
+        Assert.assertEquals(ParseStatus.OUT_OF_RANGE, parser.parse("USD 123456789012345678901234.5"));
+        Assert.assertEquals(new BigDecimal("123456789012345678901234.5"), parser.toMoneyAmount().getValue());
+    }
+
+    @Test
+    public void malformedInput() {
+        Assert.assertEquals(ParseStatus.EMPTY, parser.parse(""));
+        Assert.assertEquals(ParseStatus.EMPTY, parser.parse((String) null));
+        Assert.assertEquals(ParseStatus.BAD_FORMAT, parser.parse("USD"));
+        Assert.assertEquals(ParseStatus.BAD_FORMAT, parser.parse("USD  10"));
+        Assert.assertEquals(ParseStatus.BAD_FORMAT, parser.parse("USD 10 20"));
+        Assert.assertEquals(ParseStatus.UNKNOWN_CURRENCY, parser.parse("QQQ 10"));
+        Assert.assertEquals(ParseStatus.UNKNOWN_CURRENCY, parser.parse("usd 10"));
+        Assert.assertEquals(ParseStatus.UNKNOWN_CURRENCY, parser.parse("USDX 10"));
+        Assert.assertEquals(ParseStatus.BAD_NUMBER, parser.parse("USD 1.2.3"));
+        Assert.assertEquals(ParseStatus.BAD_NUMBER, parser.parse("USD -"));
+        Assert.assertEquals(ParseStatus.BAD_NUMBER, parser.parse("USD 1e"));
+        Assert.assertEquals(ParseStatus.BAD_NUMBER, parser.parse("USD abc"));
+    }
+
+    @Test
+    public void trailingSpacesIgnored() {
+        Assert.assertEquals(ParseStatus.OK, parser.parse("USD 10  "));
+        Assert.assertEquals(10, parser.getUnscaledValue());
+    }
+}
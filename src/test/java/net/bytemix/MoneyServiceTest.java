@@ -2,17 +2,23 @@ package net.bytemix;
 
 
 import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.PrecisionPolicy;
+import net.bytemix.services.BalanceSnapshot;
+import net.bytemix.services.ConvertedView;
 import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentBatch;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.Currency;
 import java.util.List;
 
 public class MoneyServiceTest {
-    private MoneyService service = MoneyService.getInstance();
+    private MoneyService service = new MoneyService();
     private Currency czk = Currency.getInstance("CZK");
     private Currency usd = Currency.getInstance("USD");
     private Currency gbp = Currency.getInstance("GBP");
@@ -86,4 +92,97 @@ public class MoneyServiceTest {
         service.registerPayment(new MoneyAmount("USD +1.2"));
         Assert.assertEquals(BigDecimal.valueOf(-19.0), service.getMoneyAmounts().get(0).getValue());
     }
+
+    @Test
+    public void reportViewTest() {
+        service.registerPayment(czk151_25);
+        service.registerPayment(usd20);
+        ConvertedView view = service.getReportView();
+        int czkIndex = Currencies.indexOf(czk);
+
+        String line = view.getLine(czkIndex);
+        Assert.assertEquals("CZK 151.25 (USD 6.05)", line);
+        Assert.assertEquals("USD 20", view.getLine(Currencies.indexOf(usd)));
+        Assert.assertNull(view.getLine(Currencies.indexOf(gbp)));
+        Assert.assertSame(line, view.getLine(czkIndex));
+        Assert.assertEquals(0, new BigDecimal("26.05").compareTo(view.getGrandTotal().getValue()));
+
+        service.registerPayment(czk22);
+        Assert.assertEquals("CZK 173.25 (USD 6.93)", view.getLine(czkIndex));
+        service.saveExchangeRate("USD, CZK, 20");
+        Assert.assertEquals("CZK 173.25 (USD 8.66)", view.getLine(czkIndex));
+
+        service.setReportCurrency(czk);
+        Assert.assertEquals("USD 20 (CZK 400)", service.getReportView().getLine(Currencies.indexOf(usd)));
+        Assert.assertEquals("CZK 22", service.getAmountStringWithExchange(czk22));
+        Assert.assertEquals(0, new BigDecimal("573.25").compareTo(service.getReportView().getGrandTotal().getValue()));
+    }
+
+    @Test
+    public void snapshotIsCachedUntilBalancesChange() {
+        BalanceSnapshot empty = service.getSnapshot();
+        Assert.assertEquals(0, empty.getPaymentCount());
+        Assert.assertSame(empty, service.getSnapshot());
+
+        service.registerPayment(usd20);
+        service.registerPayment(czk22);
+        BalanceSnapshot snapshot = service.getSnapshot();
+        Assert.assertEquals(2, snapshot.getPaymentCount());
+        Assert.assertTrue(snapshot.getSequence() > empty.getSequence());
+        Assert.assertEquals(BigDecimal.valueOf(20), snapshot.getAmount(usd).getValue());
+        Assert.assertNull(snapshot.getAmount(gbp));
+        Assert.assertSame(snapshot, service.getSnapshot());
+        Assert.assertSame(snapshot.getMoneyAmounts(), service.getMoneyAmounts());
+    }
+
+    @Test
+    public void snapshotHasWholeBatches() throws InterruptedException {
+        int usdIndex = Currencies.indexOf(usd);
+        int czkIndex = Currencies.indexOf(czk);
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                PaymentBatch batch = new PaymentBatch(2);
+                for (int j = 0; j < 20000; j++) {
+                    batch.add(usdIndex, 1, 0);
+                    batch.add(czkIndex, 2, 0);
+                    service.registerPayments(batch);
+                    batch.clear();
+                }
+            });
+            writers[i].start();
+        }
+
+        BalanceSnapshot snapshot;
+        do {
+            snapshot = service.getSnapshot();
+            if (snapshot.getAmount(usd) != null) {
+                long usdValue = snapshot.getAmount(usd).getValue().longValueExact();
+                Assert.assertEquals(usdValue * 2, snapshot.getAmount(czk).getValue().longValueExact());
+                Assert.assertEquals(usdValue * 2, snapshot.getPaymentCount());
+            }
+        } while (snapshot.getPaymentCount() < 4 * 20000 * 2);
+
+        for (Thread writer : writers)
+            writer.join();
+    }
+
+    @Test
+    public void exchangeIsRoundedByPolicy() {
+        MoneyAmount usd0_3333 = new MoneyAmount(new BigDecimal("0.3333"), usd);
+        Assert.assertEquals(new BigDecimal("3.37300"), service.exchange(usd0_3333, gbp).getValue());
+
+        MoneyService rounding = new MoneyService(new PrecisionPolicy(RoundingMode.HALF_EVEN, 0, 5, false));
+        rounding.saveExchangeRate("USD, GBP, 10.12");
+        Assert.assertEquals(new BigDecimal("3.37"), rounding.exchange(usd0_3333, gbp).getValue());
+        Assert.assertEquals(new BigDecimal("0.10"), rounding.exchange(gbp1, usd).getValue());
+    }
+
+    @Test
+    public void exchangeWithoutRateIsMeasured() {
+        service.getMetrics().setLatencyEnabled(true);
+        Assert.assertNull(service.exchange(usd1, Currency.getInstance("JPY")));
+        Assert.assertNotNull(service.exchange(usd1, gbp));
+        Assert.assertEquals(2, service.getMetrics().getExchangeLatency().getCount());
+    }
 }
@@ -0,0 +1,38 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.PaymentBatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+
+public class PaymentBatchTest {
+    private Currency usd = Currency.getInstance("USD");
+
+    @Test
+    public void fillAndClear() {
+        PaymentBatch batch = new PaymentBatch(3);
+        Assert.assertTrue(batch.isEmpty());
+
+        batch.add(Currencies.indexOf(usd), 100, 2);
+        batch.add(new MoneyAmount(new BigDecimal("2.5"), usd));
+        batch.add(new MoneyAmount(new BigDecimal("123456789012345678901234.5"), usd));
+        Assert.assertEquals(3, batch.size());
+        Assert.assertTrue(batch.isFull());
+
+        batch.clear();
+        Assert.assertTrue(batch.isEmpty());
+        Assert.assertFalse(batch.isFull());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addToFullBatch() {
+        PaymentBatch batch = new PaymentBatch(1);
+        batch.add(Currencies.indexOf(usd), 1, 0);
+        batch.add(Currencies.indexOf(usd), 1, 0);
+    }
+}
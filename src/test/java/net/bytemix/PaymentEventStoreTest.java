@@ -0,0 +1,171 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.services.EventStats;
+import net.bytemix.services.PaymentBatch;
+import net.bytemix.services.PaymentEventStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+
+public class PaymentEventStoreTest {
+    private static final long START = 1_500_000_000_000L;
+    private int usd = Currencies.indexOf(Currency.getInstance("USD"));
+    private int eur = Currencies.indexOf(Currency.getInstance("EUR"));
+    private ManualClock clock = new ManualClock();
+
+    @Test
+    public void aggregatesTimeRange() {
+        PaymentEventStore store = new PaymentEventStore(clock, 256, 100, Long.MAX_VALUE);
+        //1000 USD payments of 1..1000 cents, one per second, and an EUR payment every 10 seconds
+        for (int i = 1; i <= 1000; i++) {
+            store.append(usd, i, 2);
+            if (i % 10 == 0)
+                store.append(eur, 5, 0);
+            clock.advance(1000);
+        }
+
+        EventStats all = store.aggregate(usd, Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(1000, all.getCount());
+        assertValue("5005", all.getSum().getValue());
+        assertValue("0.01", all.getMin().getValue());
+        assertValue("10", all.getMax().getValue());
+
+        //Payments 301..700 cross chunk boundaries on both ends
+        EventStats range = store.aggregate(usd, START + 300_000, START + 699_000);
+        Assert.assertEquals(400, range.getCount());
+        assertValue("2002", range.getSum().getValue());
+        assertValue("3.01", range.getMin().getValue());
+        assertValue("7", range.getMax().getValue());
+
+        Assert.assertEquals(40, store.aggregate(eur, START + 300_000, START + 699_000).getCount());
+
+        EventStats none = store.aggregate(usd, START - 10, START - 1);
+        Assert.assertEquals(0, none.getCount());
+        assertValue("0", none.getSum().getValue());
+        Assert.assertNull(none.getMin());
+    }
+
+    @Test
+    public void scansInArrivalOrder() {
+        PaymentEventStore store = new PaymentEventStore(clock, 256, 100, Long.MAX_VALUE);
+        PaymentBatch batch = new PaymentBatch(10);
+        batch.add(usd, 1250, 3);
+        batch.add(eur, 3, 0);
+        store.append(batch);
+        clock.advance(5);
+        store.append(usd, 7, 1);
+
+        List<String> events = new ArrayList<>();
+        store.scan(PaymentEventStore.ALL_CURRENCIES, Long.MIN_VALUE, Long.MAX_VALUE,
+                (timestamp, currencyIndex, minorUnits) -> events.add((timestamp - START) + " "
+                        + Currencies.currency(currencyIndex) + " " + minorUnits));
+        Assert.assertEquals("[0 USD 125, 0 EUR 300, 5 USD 70]", events.toString());
+
+        events.clear();
+        store.scan(usd, START + 1, Long.MAX_VALUE, (timestamp, currencyIndex, minorUnits) -> events.add("" + minorUnits));
+        Assert.assertEquals("[70]", events.toString());
+    }
+
+    @Test
+    public void unrepresentablePaymentsAreSkipped() {
+        PaymentEventStore store = new PaymentEventStore(clock, 256, 100, Long.MAX_VALUE);
+        store.append(usd, 1, 3);
+        store.append(usd, Long.MAX_VALUE, 0);
+        store.append(usd, 1, 0);
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals(2, store.getSkippedCount());
+    }
+
+    @Test
+    public void oldChunksAreDropped() {
+        PaymentEventStore store = new PaymentEventStore(clock, 256, 3, 60_000);
+        for (int i = 0; i < 256 * 5; i++)
+            store.append(usd, 1, 0);
+        Assert.assertEquals(256 * 3, store.size());
+
+        clock.advance(120_000);
+        store.append(usd, 1, 0);
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals(1, store.aggregate(usd, Long.MIN_VALUE, Long.MAX_VALUE).getCount());
+    }
+
+    @Test
+    public void concurrentAppendsAreAllStored() throws InterruptedException {
+        PaymentEventStore store = new PaymentEventStore(Clock.systemUTC(), 256, 1000, Long.MAX_VALUE);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                PaymentBatch batch = new PaymentBatch(100);
+                for (int i = 0; i < 100; i++)
+                    batch.add(eur, 1, 0);
+                for (int i = 0; i < 10000; i++)
+                    store.append(usd, 1, 2);
+                for (int i = 0; i < 100; i++)
+                    store.append(batch);
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+
+        Assert.assertEquals(4 * 20000, store.size());
+        assertValue("400", store.aggregate(usd, Long.MIN_VALUE, Long.MAX_VALUE).getSum().getValue());
+        Assert.assertEquals(4 * 10000, store.aggregate(eur, Long.MIN_VALUE, Long.MAX_VALUE).getCount());
+
+        long[] last = {Long.MIN_VALUE};
+        store.scan(PaymentEventStore.ALL_CURRENCIES, Long.MIN_VALUE, Long.MAX_VALUE,
+                (timestamp, currencyIndex, minorUnits) -> {
+                    Assert.assertTrue(timestamp >= last[0]);
+                    last[0] = timestamp;
+                });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scanOfUnknownCurrencyIndexFails() {
+        PaymentEventStore store = new PaymentEventStore(clock, 256, 100, Long.MAX_VALUE);
+        store.scan(Currencies.count(), Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, currencyIndex, minorUnits) -> {
+        });
+    }
+
+    private static void assertValue(String expected, BigDecimal actual) {
+        Assert.assertEquals(0, new BigDecimal(expected).compareTo(actual));
+    }
+
+    private static class ManualClock extends Clock {
+        private long millis = START;
+
+        void advance(long delta) {
+            millis += delta;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+}
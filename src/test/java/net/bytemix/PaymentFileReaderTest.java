@@ -0,0 +1,61 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.PaymentFileReader;
+import net.bytemix.services.PaymentTotals;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Currency;
+import java.util.List;
+
+public class PaymentFileReaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void aggregatesAcrossChunks() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            content.append("USD 1.5\n").append("CZK 10\r\n");
+        content.append("bad line\n").append("EUR 2");
+        Path file = write(content.toString());
+
+        PaymentTotals totals = new PaymentFileReader(64).aggregate(file);
+
+        Assert.assertEquals(2001, totals.getPaymentCount());
+        Assert.assertEquals(1, totals.getRejectedCount());
+        Assert.assertEquals(new BigDecimal("1500.0"), valueOf(totals.getMoneyAmounts(), "USD"));
+        Assert.assertEquals(new BigDecimal("10000"), valueOf(totals.getMoneyAmounts(), "CZK"));
+        Assert.assertEquals(new BigDecimal("2"), valueOf(totals.getMoneyAmounts(), "EUR"));
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        PaymentTotals totals = new PaymentFileReader().aggregate(write(""));
+        Assert.assertTrue(totals.isEmpty());
+        Assert.assertEquals(0, totals.getRejectedCount());
+    }
+
+    private Path write(String content) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private BigDecimal valueOf(List<MoneyAmount> amounts, String currencyCode) {
+        for (MoneyAmount amount : amounts) {
+            if (amount.getCurrency().equals(Currency.getInstance(currencyCode)))
+                return amount.getValue();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,146 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.BalanceSnapshot;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentJournal;
+import net.bytemix.services.PaymentTotals;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+
+public class PaymentJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Currency usd = Currency.getInstance("USD");
+    private Currency czk = Currency.getInstance("CZK");
+
+    @Test
+    public void replaysLogWithoutSnapshot() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PaymentJournal running = new PaymentJournal(directory);
+        running.append(Currencies.indexOf(usd), 1025, 2);
+        running.append(Currencies.indexOf(czk), -3, 0);
+        running.awaitDurable(running.append(new MoneyAmount(new BigDecimal("123456789012345678901234.5"), usd)));
+
+        //Opening the journal while the first one still runs is the same as recovering after a crash
+        PaymentJournal recovered = new PaymentJournal(directory);
+        List<MoneyAmount> amounts = recovered.getRecoveredTotals().getMoneyAmounts();
+        Assert.assertEquals(new BigDecimal("123456789012345678901244.75"), valueOf(amounts, usd));
+        Assert.assertEquals(new BigDecimal("-3"), valueOf(amounts, czk));
+
+        recovered.close();
+        running.close();
+    }
+
+    @Test
+    public void snapshotsReplaceOldSegments() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PaymentJournal journal = new PaymentJournal(directory, 10);
+        for (int i = 0; i < 95; i++)
+            journal.awaitDurable(journal.append(Currencies.indexOf(usd), 1, 0));
+        journal.close();
+
+        File[] snapshots = directory.toFile().listFiles((dir, name) -> name.startsWith("snapshot-"));
+        File[] segments = directory.toFile().listFiles((dir, name) -> name.startsWith("journal-"));
+        Assert.assertEquals(1, snapshots.length);
+        Assert.assertEquals(1, segments.length);
+
+        PaymentJournal reopened = new PaymentJournal(directory);
+        PaymentTotals totals = reopened.getRecoveredTotals();
+        Assert.assertEquals(new BigDecimal("95"), valueOf(totals.getMoneyAmounts(), usd));
+        Assert.assertEquals(95, totals.getPaymentCount());
+        reopened.close();
+    }
+
+    @Test
+    public void snapshotKeepsPaymentCounts() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PaymentJournal journal = new PaymentJournal(directory);
+        for (int i = 0; i < 3; i++)
+            journal.append(new MoneyAmount(new BigDecimal("1E+30"), czk));
+        for (int i = 0; i < 5; i++)
+            journal.append(Currencies.indexOf(usd), 2, 0);
+        //Closing writes a final snapshot and removes the segments
+        journal.close();
+
+        PaymentJournal reopened = new PaymentJournal(directory);
+        MoneyService moneyService = new MoneyService();
+        reopened.getRecoveredTotals().applyTo(moneyService);
+        reopened.close();
+
+        BalanceSnapshot snapshot = moneyService.getSnapshot();
+        Assert.assertEquals(8, snapshot.getPaymentCount());
+        Assert.assertEquals(5, snapshot.getPaymentCount(Currencies.indexOf(usd)));
+        Assert.assertEquals(3, snapshot.getPaymentCount(Currencies.indexOf(czk)));
+    }
+
+    @Test
+    public void tornTailIsDropped() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PaymentJournal journal = new PaymentJournal(directory);
+        journal.append(Currencies.indexOf(usd), 5, 0);
+        journal.close();
+
+        File[] segments = directory.toFile().listFiles((dir, name) -> name.startsWith("journal-"));
+        Files.write(segments[0].toPath(), new byte[]{0, 0, 0, 12, 1, 2}, StandardOpenOption.APPEND);
+
+        PaymentJournal reopened = new PaymentJournal(directory);
+        Assert.assertEquals(new BigDecimal("5"), valueOf(reopened.getRecoveredTotals().getMoneyAmounts(), usd));
+        Assert.assertEquals(0, Files.size(segments[0].toPath()));
+        reopened.close();
+    }
+
+    @Test
+    public void recoveryAfterCorruptionIsRepeatable() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PaymentJournal first = new PaymentJournal(directory);
+        first.awaitDurable(first.append(Currencies.indexOf(usd), 1, 0));
+        first.awaitDurable(first.append(Currencies.indexOf(usd), 10, 0));
+        //A crash, the second instance writes the next segment
+        PaymentJournal second = new PaymentJournal(directory);
+        second.awaitDurable(second.append(Currencies.indexOf(usd), 100, 0));
+
+        File[] segments = directory.toFile().listFiles((dir, name) -> name.startsWith("journal-"));
+        Arrays.sort(segments);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 1);
+        }
+
+        PaymentJournal recovered = new PaymentJournal(directory);
+        Assert.assertEquals(new BigDecimal("1"), valueOf(recovered.getRecoveredTotals().getMoneyAmounts(), usd));
+        recovered.close();
+        PaymentJournal again = new PaymentJournal(directory);
+        Assert.assertEquals(new BigDecimal("1"), valueOf(again.getRecoveredTotals().getMoneyAmounts(), usd));
+        again.close();
+        Assert.assertTrue(new File(segments[1].getPath() + ".corrupted").exists());
+
+        second.close();
+        first.close();
+    }
+
+    private BigDecimal valueOf(List<MoneyAmount> amounts, Currency currency) {
+        for (MoneyAmount amount : amounts) {
+            if (amount.getCurrency().equals(currency))
+                return amount.getValue();
+        }
+        return null;
+    }
+}
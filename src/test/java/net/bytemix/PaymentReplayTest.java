@@ -0,0 +1,69 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.PaymentReplay;
+import net.bytemix.services.ReplayResult;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class PaymentReplayTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsFilesByDirectoryAndGlob() throws IOException {
+        Path first = write("2017-01.txt", "USD 1");
+        Path second = write("2017-02.txt", "USD 2");
+        write("2018-01.txt", "USD 3");
+        Path nested = folder.newFolder("old").toPath().resolve("2017-03.txt");
+        Files.write(nested, "USD 4".getBytes(StandardCharsets.US_ASCII));
+
+        String root = folder.getRoot().getPath() + File.separator;
+        Assert.assertEquals(Arrays.asList(first, second), PaymentReplay.findFiles(root + "2017-*.txt"));
+        Assert.assertEquals(Arrays.asList(first, second, nested), PaymentReplay.findFiles(root + "**2017-*.txt"));
+        Assert.assertEquals(3, PaymentReplay.findFiles(folder.getRoot().getPath()).size());
+    }
+
+    @Test
+    public void mergesFilesAndReportsFailures() throws IOException {
+        Path first = write("a.txt", "USD 1.5\nCZK 10\nbad\n");
+        Path second = write("b.txt", "USD 2\n");
+        Path missing = folder.getRoot().toPath().resolve("missing.txt");
+
+        ReplayResult result = new PaymentReplay(2).replay(Arrays.asList(first, missing, second));
+
+        Assert.assertEquals(3, result.getFiles().size());
+        Assert.assertEquals(1, result.getFailedCount());
+        Assert.assertNotNull(result.getFiles().get(1).getError());
+        Assert.assertEquals(2, result.getFiles().get(0).getTotals().getPaymentCount());
+        Assert.assertEquals(3, result.getTotals().getPaymentCount());
+        Assert.assertEquals(1, result.getTotals().getRejectedCount());
+        Assert.assertEquals(0, new BigDecimal("3.5").compareTo(valueOf(result.getTotals().getMoneyAmounts(), "USD")));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static BigDecimal valueOf(List<MoneyAmount> amounts, String currency) {
+        for (MoneyAmount amount : amounts) {
+            if (amount.getCurrency().getCurrencyCode().equals(currency))
+                return amount.getValue();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,144 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.domain.ParseStatus;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentJournal;
+import net.bytemix.services.RejectLog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PaymentServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MoneyService moneyService = new MoneyService();
+    private PaymentServer server;
+
+    @Before
+    public void start() throws IOException {
+        server = new PaymentServer(moneyService, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.close();
+    }
+
+    @Test
+    public void pipelinedLinesAreAnsweredInOrder() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < 3000; i++)
+                lines.append("USD 1.25\r\n");
+            lines.append("not a payment\nCZK 10\n");
+            output.write(lines.toString().getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+
+            BufferedReader answers = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            for (int i = 0; i < 3000; i++)
+                Assert.assertEquals("OK", answers.readLine());
+            Assert.assertTrue(answers.readLine().startsWith("ERR "));
+            Assert.assertEquals("OK", answers.readLine());
+        }
+
+        List<MoneyAmount> amounts = moneyService.getMoneyAmounts();
+        Assert.assertEquals(2, amounts.size());
+        Assert.assertEquals(3001, server.getPaymentCount());
+        Assert.assertEquals(1, server.getRejectedCount());
+        for (MoneyAmount amount : amounts) {
+            BigDecimal expected = amount.getCurrency().getCurrencyCode().equals("USD")
+                    ? new BigDecimal("3750") : BigDecimal.TEN;
+            Assert.assertEquals(0, expected.compareTo(amount.getValue()));
+        }
+    }
+
+    @Test
+    public void lastLineWithoutSeparator() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.getOutputStream().write("EUR 5".getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+
+            BufferedReader answers = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            Assert.assertEquals("OK", answers.readLine());
+            Assert.assertNull(answers.readLine());
+        }
+        Assert.assertEquals(1, server.getPaymentCount());
+    }
+
+    @Test
+    public void lineLongerThanBufferIsRejected() throws IOException {
+        RejectLog rejects = new RejectLog(null, 16, 10000);
+        moneyService.setRejectLog(rejects);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            StringBuilder lines = new StringBuilder("USD ");
+            for (int i = 0; i < 10000; i++)
+                lines.append('1');
+            lines.append("\nUSD 1\n");
+            socket.getOutputStream().write(lines.toString().getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+
+            BufferedReader answers = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            Assert.assertTrue(answers.readLine().startsWith("ERR "));
+            Assert.assertEquals("OK", answers.readLine());
+            Assert.assertNull(answers.readLine());
+        } finally {
+            rejects.close();
+        }
+        Assert.assertEquals(1, server.getPaymentCount());
+        Assert.assertEquals(1, server.getRejectedCount());
+        Assert.assertEquals(1, rejects.getRejectedCount(ParseStatus.BAD_FORMAT));
+    }
+
+    @Test
+    public void failedRegistrationIsAnsweredWithError() throws IOException {
+        PaymentJournal journal = new PaymentJournal(folder.newFolder().toPath());
+        journal.close();
+        moneyService.setJournal(journal);
+        Assert.assertEquals("[ERR payment couldn't be registered, ERR " + ParseStatus.BAD_FORMAT.getDescription()
+                + "]", send("USD 1\nbad\n", 2).toString());
+
+        //Every event loop survived and serves new connections
+        moneyService.setJournal(null);
+        for (int i = 0; i < 2; i++)
+            Assert.assertEquals("[OK]", send("CZK 1\n", 1).toString());
+        Assert.assertEquals(2, server.getPaymentCount());
+    }
+
+    private List<String> send(String lines, int answerCount) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.getOutputStream().write(lines.getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+
+            BufferedReader answers = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            List<String> received = new ArrayList<>();
+            for (int i = 0; i < answerCount; i++)
+                received.add(answers.readLine());
+            Assert.assertNull(answers.readLine());
+            return received;
+        }
+    }
+}
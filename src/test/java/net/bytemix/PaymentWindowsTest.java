@@ -0,0 +1,126 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentBatch;
+import net.bytemix.services.PaymentTotals;
+import net.bytemix.services.PaymentWindows;
+import net.bytemix.services.TimeWindow;
+import net.bytemix.services.WindowTotal;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Currency;
+
+public class PaymentWindowsTest {
+    private int usd = Currencies.indexOf(Currency.getInstance("USD"));
+    private ManualClock clock = new ManualClock();
+    private PaymentWindows windows = new PaymentWindows(clock);
+
+    @Test
+    public void paymentsLeaveTheWindows() {
+        Assert.assertNull(windows.getTotal(usd, TimeWindow.MINUTE));
+
+        windows.add(usd, 1050, 2);
+        clock.advance(30 * 1000L);
+        windows.add(usd, 5, 0);
+        windows.add(usd, 1, 3);
+        assertTotal("15.501", 3, TimeWindow.MINUTE);
+
+        clock.advance(40 * 1000L);
+        assertTotal("5.001", 2, TimeWindow.MINUTE);
+        assertTotal("15.501", 3, TimeWindow.HOUR);
+
+        clock.advance(60 * 60 * 1000L);
+        assertTotal("0", 0, TimeWindow.MINUTE);
+        assertTotal("0", 0, TimeWindow.HOUR);
+        assertTotal("15.501", 3, TimeWindow.DAY);
+
+        clock.advance(24 * 60 * 60 * 1000L);
+        assertTotal("0", 0, TimeWindow.DAY);
+    }
+
+    @Test
+    public void reusedBucketIsReset() {
+        windows.addTotal(usd, 200, 4, null);
+        clock.advance(60 * 1000L);
+        windows.addTotal(usd, 300, 1, new BigDecimal("0.001"));
+        assertTotal("3.001", 1, TimeWindow.MINUTE);
+        assertTotal("5.001", 5, TimeWindow.HOUR);
+    }
+
+    @Test
+    public void concurrentWriters() throws InterruptedException {
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    windows.add(usd, 1, 2);
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+
+        assertTotal("400", 40000, TimeWindow.MINUTE);
+    }
+
+    @Test
+    public void onlyPaymentsRegisteredNowAreInWindows() {
+        MoneyService moneyService = new MoneyService();
+        Assert.assertNull(moneyService.getWindowTotal(Currency.getInstance("USD"), TimeWindow.MINUTE));
+
+        moneyService.setWindows(windows);
+        PaymentTotals history = new PaymentTotals();
+        history.add(usd, 100, 0);
+        history.applyTo(moneyService);
+        PaymentBatch batch = new PaymentBatch(2);
+        batch.add(usd, 5, 0);
+        moneyService.registerPayments(batch);
+        moneyService.registerPayment(usd, 1, 0);
+
+        assertTotal("6", 2, TimeWindow.MINUTE);
+        Assert.assertEquals(0, new BigDecimal("106").compareTo(
+                moneyService.getSnapshot().getAmount(Currency.getInstance("USD")).getValue()));
+    }
+
+    private void assertTotal(String value, long count, TimeWindow window) {
+        WindowTotal total = windows.getTotal(usd, window);
+        Assert.assertEquals(0, new BigDecimal(value).compareTo(total.getAmount().getValue()));
+        Assert.assertEquals(count, total.getCount());
+    }
+
+    private static class ManualClock extends Clock {
+        private long millis = 1_500_000_000_000L;
+
+        void advance(long delta) {
+            millis += delta;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+}
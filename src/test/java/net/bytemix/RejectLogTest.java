@@ -0,0 +1,86 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.ParseStatus;
+import net.bytemix.services.PaymentFileReader;
+import net.bytemix.services.PaymentTotals;
+import net.bytemix.services.RejectLog;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RejectLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesTruncatedRecords() throws Exception {
+        Path file = folder.newFile().toPath();
+        RejectLog rejects = new RejectLog(file, 16, 10000);
+        StringBuilder longLine = new StringBuilder("USD ");
+        for (int i = 0; i < 100; i++)
+            longLine.append('1');
+
+        Assert.assertTrue(rejects.reject("stdin", 3, ParseStatus.UNKNOWN_CURRENCY, "ABC 10"));
+        Assert.assertTrue(rejects.reject("stdin", 7, ParseStatus.BAD_NUMBER, longLine.toString()));
+        rejects.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals("stdin:3 UNKNOWN_CURRENCY [ABC 10]", lines.get(0));
+        Assert.assertEquals("stdin:7 BAD_NUMBER [" + longLine.substring(0, RejectLog.MAX_INPUT) + "...]",
+                lines.get(1));
+        Assert.assertEquals(2, rejects.getRejectedCount());
+        Assert.assertEquals(1, rejects.getRejectedCount(ParseStatus.BAD_NUMBER));
+    }
+
+    @Test
+    public void fullBufferOnlyCounts() throws Exception {
+        Path file = folder.newFile().toPath();
+        RejectLog rejects = new RejectLog(file, 4, 10000);
+        byte[] line = "bad".getBytes(StandardCharsets.US_ASCII);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String source = "thread" + t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    rejects.reject(source, i, ParseStatus.BAD_FORMAT, line, 0, line.length);
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        rejects.close();
+
+        //Every reject is either written or counted as dropped, never both or neither
+        long written = Files.readAllLines(file, StandardCharsets.UTF_8).size();
+        Assert.assertEquals(40000, rejects.getRejectedCount());
+        Assert.assertEquals(40000, written + rejects.getDroppedCount());
+        Assert.assertTrue(rejects.getDroppedCount() > 0);
+    }
+
+    @Test
+    public void fileReaderRecordsOffsets() throws Exception {
+        Path payments = folder.newFile().toPath();
+        Files.write(payments, "USD 10\nUSD ten\nEUR 5\n".getBytes(StandardCharsets.UTF_8));
+        Path file = folder.newFile().toPath();
+        RejectLog rejects = new RejectLog(file, 16, 10000);
+
+        PaymentTotals totals = new PaymentFileReader(rejects).aggregate(payments);
+        rejects.close();
+
+        Assert.assertEquals(1, totals.getRejectedCount());
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Assert.assertEquals(1, lines.size());
+        Assert.assertEquals(payments + ":7 BAD_NUMBER [USD ten]", lines.get(0));
+    }
+}
@@ -0,0 +1,82 @@
+package net.bytemix;
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.MoneyService;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+
+public class ReportRendererTest {
+    private MoneyService service = new MoneyService();
+    private ReportRenderer renderer = new ReportRenderer(service);
+    private Currency czk = Currency.getInstance("CZK");
+    private Currency usd = Currency.getInstance("USD");
+
+    @Before
+    public void setup() {
+        service.saveExchangeRate("USD, CZK, 25");
+        service.registerPayment(new MoneyAmount(BigDecimal.valueOf(10), usd));
+        service.registerPayment(new MoneyAmount(BigDecimal.valueOf(100), czk));
+    }
+
+    @Test
+    public void emptyServiceWritesNothing() throws IOException {
+        Assert.assertEquals("", render(new ReportRenderer(new MoneyService())));
+    }
+
+    @Test
+    public void unchangedBalancesAreNotRenderedAgain() throws IOException {
+        String report = render(renderer);
+        assertLines(report, "USD 10", "CZK 100 (USD 4)", "Total USD 14");
+
+        String czkLine = service.getReportView().getLine(Currencies.indexOf(czk));
+        Assert.assertEquals(report, render(renderer));
+        Assert.assertSame(czkLine, service.getReportView().getLine(Currencies.indexOf(czk)));
+    }
+
+    @Test
+    public void changedBalanceIsRenderedAgain() throws IOException {
+        render(renderer);
+        String usdLine = service.getReportView().getLine(Currencies.indexOf(usd));
+
+        service.registerPayment(new MoneyAmount(BigDecimal.valueOf(50), czk));
+        assertLines(render(renderer), "USD 10", "CZK 150 (USD 6)", "Total USD 16");
+        Assert.assertSame(usdLine, service.getReportView().getLine(Currencies.indexOf(usd)));
+    }
+
+    @Test
+    public void swappedRatesAreRenderedAgain() throws IOException {
+        render(renderer);
+
+        service.saveExchangeRate("USD, CZK, 20");
+        assertLines(render(renderer), "USD 10", "CZK 100 (USD 5)", "Total USD 15");
+
+        service.setReportCurrency(czk);
+        assertLines(render(renderer), "USD 10 (CZK 200)", "CZK 100", "Total CZK 300");
+    }
+
+    @Test
+    public void currencyWithoutRateIsCounted() throws IOException {
+        service.registerPayment(new MoneyAmount(BigDecimal.valueOf(3), Currency.getInstance("GBP")));
+        assertLines(render(renderer), "GBP 3", "Total USD 14 (1 currencies without exchange rate)");
+    }
+
+    private static String render(ReportRenderer renderer) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        renderer.writeTo(output);
+        return new String(output.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void assertLines(String report, String... lines) {
+        for (String line : lines)
+            Assert.assertTrue(report, report.contains(line + "\n"));
+        Assert.assertTrue(report, report.endsWith(lines[lines.length - 1] + "\n"));
+    }
+}
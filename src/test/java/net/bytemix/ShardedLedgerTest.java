@@ -0,0 +1,86 @@
+package net.bytemix;
+
+
+import net.bytemix.domain.Currencies;
+import net.bytemix.domain.MoneyAmount;
+import net.bytemix.services.MoneyService;
+import net.bytemix.services.PaymentBatch;
+import net.bytemix.services.PaymentTotals;
+import net.bytemix.services.ShardedLedger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ShardedLedgerTest {
+    private static final String[] CURRENCIES = {"USD", "EUR", "CZK", "GBP", "JPY"};
+
+    @Test
+    public void concurrentProducers() throws InterruptedException {
+        try (ShardedLedger ledger = new ShardedLedger("test", 3, 16, 4)) {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread(() -> {
+                    ShardedLedger.Producer producer = ledger.producer();
+                    for (int i = 0; i < 10000; i++) {
+                        Currency currency = Currency.getInstance(CURRENCIES[i % CURRENCIES.length]);
+                        producer.add(Currencies.indexOf(currency), 125, 2);
+                    }
+                    producer.add(new MoneyAmount(new BigDecimal("0.001"), Currency.getInstance("USD")));
+                    producer.flush();
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads)
+                thread.join();
+
+            PaymentTotals totals = ledger.getTotals();
+            Assert.assertEquals(40004, totals.getPaymentCount());
+
+            Map<String, BigDecimal> values = new HashMap<>();
+            for (MoneyAmount amount : totals.getMoneyAmounts())
+                values.put(amount.getCurrency().getCurrencyCode(), amount.getValue());
+            Assert.assertEquals(CURRENCIES.length, values.size());
+            Assert.assertEquals(0, new BigDecimal("10000.004").compareTo(values.get("USD")));
+            Assert.assertEquals(0, new BigDecimal("10000").compareTo(values.get("EUR")));
+        }
+    }
+
+    @Test
+    public void independentLedgers() {
+        try (ShardedLedger first = new ShardedLedger("first", 2, 4, 2);
+             ShardedLedger second = new ShardedLedger("second", 2, 4, 2)) {
+            ShardedLedger.Producer producer = first.producer();
+            producer.add(Currencies.indexOf(Currency.getInstance("USD")), 1, 0);
+            producer.flush();
+
+            Assert.assertEquals(1, first.getMoneyAmounts().size());
+            Assert.assertTrue(second.getTotals().isEmpty());
+        }
+    }
+
+    @Test
+    public void shardsRegisterIntoService() {
+        MoneyService moneyService = new MoneyService();
+        try (ShardedLedger ledger = new ShardedLedger(moneyService, "service", 2, 4, 2)) {
+            PaymentBatch batch = new PaymentBatch(10);
+            batch.add(Currencies.indexOf(Currency.getInstance("USD")), 150, 2);
+            batch.add(Currencies.indexOf(Currency.getInstance("CZK")), -2, 0);
+            batch.add(new MoneyAmount(new BigDecimal("1E+30"), Currency.getInstance("USD")));
+            ShardedLedger.Producer producer = ledger.producer();
+            producer.add(batch);
+            producer.flush();
+
+            Assert.assertEquals(3, ledger.getTotals().getPaymentCount());
+            Assert.assertEquals(3, moneyService.getSnapshot().getPaymentCount());
+            Assert.assertEquals(0, new BigDecimal("1000000000000000000000000000001.5")
+                    .compareTo(moneyService.getSnapshot().getAmount(Currency.getInstance("USD")).getValue()));
+        }
+    }
+}